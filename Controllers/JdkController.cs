@@ -1,4 +1,5 @@
 ﻿using Microsoft.AspNetCore.Authorization;
+using Microsoft.AspNetCore.DataProtection;
 using Microsoft.AspNetCore.Identity;
 using Microsoft.AspNetCore.Mvc;
 using SnapSaves.Auth;
@@ -8,6 +9,7 @@ using SnapSaves.Helpers;
 using MongoDB.Driver;
 using Microsoft.EntityFrameworkCore;
 using Newtonsoft.Json;
+using System.IO.Compression;
 
 namespace SnapSaves.Controllers
 {
@@ -17,17 +19,23 @@ namespace SnapSaves.Controllers
         private readonly AppIdentityDbContext _identityDbContext;
         private readonly PermissionHelper _permissionHelper;
         private readonly UserManager<AppUser> _userManager;
+        private readonly ITimeLimitedDataProtector _containerProtector;
+        private readonly bool _useProjectContainer;
 
         public JdkController(
             MongoDbContext dbContext,
             AppIdentityDbContext identityDbContext,
             PermissionHelper permissionHelper,
-            UserManager<AppUser> userManager)
+            UserManager<AppUser> userManager,
+            IDataProtectionProvider dataProtectionProvider,
+            IConfiguration configuration)
         {
             _dbContext = dbContext;
             _identityDbContext = identityDbContext;
             _permissionHelper = permissionHelper;
             _userManager = userManager;
+            _containerProtector = dataProtectionProvider.CreateProtector("JdkProjectContainer").ToTimeLimitedDataProtector();
+            _useProjectContainer = configuration.GetValue("Jdk:UseProjectContainer", true);
         }
 
         [HttpGet]
@@ -125,6 +133,43 @@ namespace SnapSaves.Controllers
             return View("Index");
         }
 
+        // Serves the project as a project.snapbin container. The token is issued by
+        // PrepareProjectForView after the view's own access checks, so it stands in for them here.
+        [HttpGet]
+        public async Task<IActionResult> ProjectContainer(string token)
+        {
+            string projectId;
+            try
+            {
+                projectId = _containerProtector.Unprotect(token);
+            }
+            catch (System.Security.Cryptography.CryptographicException)
+            {
+                return Forbid();
+            }
+
+            var project = await GetProjectAsync(projectId);
+            if (project == null)
+                return NotFound("Project not found.");
+
+            // A project that was never saved still has its template's files, so the baked image
+            // is sent as it is if it still unpacks to them; the page has the materializer write it to this project's id
+            if (project.TemplateImage != null && project.TemplateImageTree != null && project.LastModified == project.CreatedAt)
+            {
+                var image = TemplateImages.Read(project.TemplateImage, project.TemplateImageTree);
+                if (image != null)
+                    return File(image, "application/gzip");
+            }
+
+            // Sent as a gzip payload rather than with Content-Encoding, so fetch hands the compressed
+            // bytes to the page as they are and the materializer inflates them itself
+            var container = ProjectContainerWriter.Write(project);
+            using var compressed = new MemoryStream();
+            using (var gzip = new GZipStream(compressed, CompressionLevel.Fastest, leaveOpen: true))
+                gzip.Write(container, 0, container.Length);
+            return File(compressed.ToArray(), "application/gzip");
+        }
+
         // --- Helper Methods ---
 
         private async Task<Project?> GetProjectAsync(string projectId)
@@ -139,22 +184,33 @@ namespace SnapSaves.Controllers
 
         private void PrepareProjectForView(Project project, string projectId, string projectName, bool isReadOnly)
         {
-            foreach (var file in project.Files)
+            if (_useProjectContainer)
+            {
+                // The page fetches the project as a binary container instead of an embedded JSON string
+                var containerToken = _containerProtector.Protect(project.Id, TimeSpan.FromMinutes(10));
+                ViewData["ProjectContainerUrl"] = Url.Action(nameof(ProjectContainer), new { token = containerToken });
+            }
+            else
             {
-                if (file.IsBinary && !IsBase64String(file.Content))
+                foreach (var file in project.Files)
                 {
-                    var bytes = System.Text.Encoding.UTF8.GetBytes(file.Content);
-                    file.Content = Convert.ToBase64String(bytes);
+                    if (file.IsBinary && !IsBase64String(file.Content))
+                    {
+                        var bytes = System.Text.Encoding.UTF8.GetBytes(file.Content);
+                        file.Content = Convert.ToBase64String(bytes);
+                    }
                 }
-            }
 
-            var projectJson = JsonConvert.SerializeObject(project, new JsonSerializerSettings
-            {
-                StringEscapeHandling = StringEscapeHandling.EscapeHtml
-            });
+                var projectJson = JsonConvert.SerializeObject(project, new JsonSerializerSettings
+                {
+                    StringEscapeHandling = StringEscapeHandling.EscapeHtml
+                });
+
+                ViewData["ProjectJson"] = projectJson;
+            }
 
-            ViewData["ProjectJson"] = projectJson;
             ViewData["ProjectId"] = projectId;
+            ViewData["ProjectVersion"] = ProjectPatcher.Version(project.LastModified);
             ViewData["UserId"] = project.UserId;
             ViewData["ProjectName"] = projectName;
             ViewData["ReadOnly"] = isReadOnly;
@@ -48,16 +48,18 @@ public class ProjectsApiController : ControllerBase
         if (updatedProject.UserId != currentUserId)
             return BadRequest("UserId mismatch.");
 
+        var now = DateTime.UtcNow;
         var update = Builders<Project>.Update
             .Set(p => p.Files, updatedProject.Files)
-            .Set(p => p.LastModified, DateTime.UtcNow);
+            .Set(p => p.LastModified, now);
 
         await _dbContext.Projects.UpdateOneAsync(
             p => p.Id == updatedProject.Id,
             update
         );
 
-        return Ok("Project saved successfully.");
+        // The version lets the editor send only its changes next time
+        return Ok(new { message = "Project saved successfully.", version = ProjectPatcher.Version(now) });
     }
 
     private async Task<IActionResult> SaveAnonymousProject(Project updatedProject)
@@ -74,26 +76,86 @@ public class ProjectsApiController : ControllerBase
             return NotFound("Anonymous project not found.");
 
         // Update the anonymous project
+        var now = DateTime.UtcNow;
         var update = Builders<Project>.Update
             .Set(p => p.Files, updatedProject.Files)
-            .Set(p => p.LastModified, DateTime.UtcNow);
+            .Set(p => p.LastModified, now);
 
         await _dbContext.Projects.UpdateOneAsync(
             p => p.Id == updatedProject.Id,
             update
         );
 
-        // Update the share link's last accessed time if it exists
+        await TouchAnonymousShareLinkAsync(updatedProject.Id);
+
+        return Ok(new { message = "Anonymous project saved successfully.", version = ProjectPatcher.Version(now) });
+    }
+
+    [HttpPost("patch")]
+    public async Task<IActionResult> Patch([FromBody] ProjectPatch patch)
+    {
+        var project = await _dbContext.Projects
+            .Find(p => p.Id == patch.Id)
+            .FirstOrDefaultAsync();
+
+        if (project == null)
+            return NotFound("Project not found.");
+
+        bool isAnonymous = string.IsNullOrWhiteSpace(patch.UserId);
+        if (isAnonymous)
+        {
+            if (project.UserId != null)
+                return NotFound("Anonymous project not found.");
+        }
+        else
+        {
+            var currentUserId = User.Claims.FirstOrDefault(c => c.Type == "MongoUserId")?.Value;
+            if (string.IsNullOrEmpty(currentUserId))
+                return Unauthorized("You must be logged in.");
+
+            if (project.UserId != currentUserId)
+                return Forbid();
+
+            if (patch.UserId != currentUserId)
+                return BadRequest("UserId mismatch.");
+        }
+
+        // A patch only describes changes against the version the editor last opened or saved;
+        // anything else has to be sent as a full save
+        if (patch.BaseVersion != ProjectPatcher.Version(project.LastModified))
+            return Conflict("The project changed since it was opened. Send the full project.");
+
+        var now = DateTime.UtcNow;
+        var update = Builders<Project>.Update
+            .Set(p => p.Files, ProjectPatcher.Apply(project.Files, patch))
+            .Set(p => p.LastModified, now);
+
+        // Matching LastModified as well makes the version check and the update one atomic step
+        var result = await _dbContext.Projects.UpdateOneAsync(
+            p => p.Id == project.Id && p.LastModified == project.LastModified,
+            update
+        );
+
+        if (result.ModifiedCount == 0)
+            return Conflict("The project changed since it was opened. Send the full project.");
+
+        if (isAnonymous)
+            await TouchAnonymousShareLinkAsync(project.Id);
+
+        return Ok(new { message = "Project saved successfully.", version = ProjectPatcher.Version(now) });
+    }
+
+    // Update the share link's last accessed time if it exists
+    private async Task TouchAnonymousShareLinkAsync(string projectId)
+    {
         var shareLink = await _identityDbContext.ProjectShareLinks
-            .FirstOrDefaultAsync(s => s.ProjectMongoId == updatedProject.Id && s.IsAnonymous && s.IsActive);
+            .FirstOrDefaultAsync(s => s.ProjectMongoId == projectId && s.IsAnonymous && s.IsActive);
 
         if (shareLink != null)
         {
             shareLink.LastAccessedAt = DateTime.UtcNow;
             await _identityDbContext.SaveChangesAsync();
         }
-
-        return Ok("Anonymous project saved successfully.");
     }
 
     [HttpPost("create-anonymous-sharelink")]
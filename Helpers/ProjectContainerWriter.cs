@@ -0,0 +1,95 @@
+using System.Text;
+using SnapSaves.Models;
+
+namespace SnapSaves.Helpers
+{
+    /// <summary>
+    /// Writes a project as project.snapbin, the binary container CreateSnapCodeProjectCheerpJ
+    /// reads in place of project.json (layout documented in wwwroot/ProjectContainerReader.java).
+    /// File bodies are stored raw, so nothing is JSON-escaped or Base64-encoded for the browser.
+    /// </summary>
+    public static class ProjectContainerWriter
+    {
+        private const byte FlagDirectory = 1;
+        private const byte FlagBinary = 2;
+        private static readonly byte[] Magic = Encoding.ASCII.GetBytes("SNAPBIN1");
+
+        public static byte[] Write(Project project)
+        {
+            var entries = new List<(string Path, byte Flags, byte[] Data)>();
+            Flatten(project.Files, string.Empty, entries);
+
+            var idBytes = Encoding.UTF8.GetBytes(project.Id ?? string.Empty);
+            var pathBytes = entries.Select(e => Encoding.UTF8.GetBytes(e.Path)).ToList();
+            long offset = Magic.Length + 4 + 4 + idBytes.Length + pathBytes.Sum(p => 1 + 2 + p.Length + 8 + 8L);
+
+            using var stream = new MemoryStream();
+            // BinaryWriter is always little-endian, which is what the reader expects
+            using (var writer = new BinaryWriter(stream, Encoding.UTF8, leaveOpen: true))
+            {
+                writer.Write(Magic);
+                writer.Write(entries.Count);
+                writer.Write(idBytes.Length);
+                writer.Write(idBytes);
+                for (int i = 0; i < entries.Count; i++)
+                {
+                    writer.Write(entries[i].Flags);
+                    writer.Write((ushort)pathBytes[i].Length);
+                    writer.Write(pathBytes[i]);
+                    writer.Write(offset);
+                    writer.Write((long)entries[i].Data.Length);
+                    offset += entries[i].Data.Length;
+                }
+                foreach (var entry in entries)
+                    writer.Write(entry.Data);
+            }
+            return stream.ToArray();
+        }
+
+        /// <summary>The project's files with full paths and their bytes, directories left out.</summary>
+        public static IEnumerable<(string Path, byte[] Data)> Files(Project project)
+        {
+            var entries = new List<(string Path, byte Flags, byte[] Data)>();
+            Flatten(project.Files, string.Empty, entries);
+            return entries.Where(e => e.Flags != FlagDirectory).Select(e => (e.Path, e.Data));
+        }
+
+        // Nested children are flattened to full paths, the same way the JSON reader joins them
+        private static void Flatten(IEnumerable<ProjectFile> files, string parentPath, List<(string Path, byte Flags, byte[] Data)> entries)
+        {
+            foreach (var file in files)
+            {
+                if (string.IsNullOrEmpty(file.Path))
+                    continue;
+                // A child path that already repeats its parent's is taken as it is
+                var path = parentPath.Length > 0 && file.Path.StartsWith(parentPath + "/")
+                    ? file.Path
+                    : parentPath + (file.Path.StartsWith("/") ? file.Path : "/" + file.Path);
+                if (file.IsDirectory)
+                {
+                    entries.Add((path, FlagDirectory, Array.Empty<byte>()));
+                    if (file.Children != null)
+                        Flatten(file.Children, path, entries);
+                }
+                else
+                {
+                    entries.Add((path, file.IsBinary ? FlagBinary : (byte)0, GetBytes(file)));
+                }
+            }
+        }
+
+        // Binary files are stored as Base64; content that does not decode is taken as UTF-8 text,
+        // matching what PrepareProjectForView does for the JSON path
+        private static byte[] GetBytes(ProjectFile file)
+        {
+            var content = file.Content ?? string.Empty;
+            if (file.IsBinary)
+            {
+                var buffer = new byte[content.Length * 3 / 4 + 3];
+                if (Convert.TryFromBase64String(content, buffer, out var written))
+                    return buffer.AsSpan(0, written).ToArray();
+            }
+            return Encoding.UTF8.GetBytes(content);
+        }
+    }
+}
@@ -111,6 +111,8 @@ namespace SnapSaves.Helpers
             await _dbContext.Projects.InsertOneAsync(newProject);
 
             newProject.Files = CopyTemplateFiles(templateProject, newProject.Id);
+            newProject.TemplateImageTree = TemplateImages.TreeHash(newProject);
+            newProject.TemplateImage = TemplateImages.Find(newProject.TemplateImageTree);
             await _dbContext.Projects.ReplaceOneAsync(p => p.Id == newProject.Id, newProject);
 
             return (true, "", newProject);
@@ -135,6 +137,8 @@ namespace SnapSaves.Helpers
             await _dbContext.Projects.InsertOneAsync(newProject);
 
             newProject.Files = CopyTemplateFiles(templateProject, newProject.Id);
+            newProject.TemplateImageTree = TemplateImages.TreeHash(newProject);
+            newProject.TemplateImage = TemplateImages.Find(newProject.TemplateImageTree);
             await _dbContext.Projects.ReplaceOneAsync(p => p.Id == newProject.Id, newProject);
 
             var projectRecord = new ProjectRecord
@@ -152,12 +156,14 @@ namespace SnapSaves.Helpers
 
         private Project CreateProjectInstance(Template template, Project templateProject, string? userId, string? customName)
         {
+            // LastModified equal to CreatedAt marks a project that was never saved
+            var now = DateTime.UtcNow;
             return new Project
             {
                 Name = string.IsNullOrWhiteSpace(customName) ? template.Name + " (Copy)" : customName,
                 UserId = userId,
-                CreatedAt = DateTime.UtcNow,
-                LastModified = DateTime.UtcNow,
+                CreatedAt = now,
+                LastModified = now,
                 Files = new List<ProjectFile>(),
                 InstructionsId = template.InstructionsId
             };
@@ -165,13 +171,19 @@ namespace SnapSaves.Helpers
 
         private List<ProjectFile> CopyTemplateFiles(Project templateProject, string newProjectId)
         {
-            var oldProjectId = templateProject.Id;
-            return templateProject.Files.Select(f => new ProjectFile
+            return CopyFiles(templateProject.Files, templateProject.Id, newProjectId);
+        }
+
+        // Copies files and the children of directories, moving every path to the new project
+        private static List<ProjectFile> CopyFiles(List<ProjectFile> files, string oldProjectId, string newProjectId)
+        {
+            return files.Select(f => new ProjectFile
             {
                 Path = ReplaceProjectIdInPath(f.Path, oldProjectId, newProjectId),
                 Content = f.Content,
                 IsDirectory = f.IsDirectory,
-                IsBinary = f.IsBinary
+                IsBinary = f.IsBinary,
+                Children = f.Children != null ? CopyFiles(f.Children, oldProjectId, newProjectId) : new List<ProjectFile>()
             }).ToList();
         }
 
@@ -0,0 +1,97 @@
+using SnapSaves.Models;
+
+namespace SnapSaves.Helpers
+{
+    /// <summary>
+    /// Applies a <see cref="ProjectPatch"/> to a project's files. The result is the flat list
+    /// of full paths that a full save stores, so nested template trees are flattened first.
+    /// Stored and patch paths are normalized the way the materializer's ProjectPathPlan does,
+    /// so they match however either side spelled them.
+    /// </summary>
+    public static class ProjectPatcher
+    {
+        // The version the editor sends back with a patch; Mongo keeps LastModified to the millisecond
+        public static long Version(DateTime lastModified)
+        {
+            return new DateTimeOffset(DateTime.SpecifyKind(lastModified, DateTimeKind.Utc)).ToUnixTimeMilliseconds();
+        }
+
+        public static List<ProjectFile> Apply(IEnumerable<ProjectFile> files, ProjectPatch patch)
+        {
+            var result = new List<ProjectFile>();
+            Flatten(files, string.Empty, result);
+            // Of two stored entries with the same path the first one wins, as when the project is opened
+            var seen = new HashSet<string>();
+            result.RemoveAll(f => !seen.Add(f.Path));
+
+            // Deleting a directory also drops anything still listed below it
+            var deleted = new HashSet<string>((patch.Deleted ?? new List<string>()).Select(Normalize).OfType<string>());
+            result.RemoveAll(f => deleted.Contains(f.Path) || deleted.Any(d => f.Path.StartsWith(d + "/")));
+
+            var index = new Dictionary<string, int>();
+            for (int i = 0; i < result.Count; i++)
+                index[result[i].Path] = i;
+            foreach (var file in (patch.Added ?? new List<ProjectFile>()).Concat(patch.Modified ?? new List<ProjectFile>()))
+            {
+                var path = string.IsNullOrEmpty(file.Path) ? null : Normalize(file.Path);
+                if (path == null)
+                    continue;
+                file.Path = path;
+                file.Children = new List<ProjectFile>();
+                if (index.TryGetValue(file.Path, out var i))
+                    result[i] = file;
+                else
+                {
+                    index[file.Path] = result.Count;
+                    result.Add(file);
+                }
+            }
+            return result;
+        }
+
+        /// <summary>
+        /// Returns the path as '/'-separated segments with a leading '/' ('' becomes '/', empty
+        /// and '.' segments are dropped), or null if it is empty or has a '..' segment.
+        /// </summary>
+        public static string? Normalize(string path)
+        {
+            var normalized = new System.Text.StringBuilder(path.Length + 1);
+            foreach (var segment in path.Replace('\\', '/').Split('/'))
+            {
+                if (segment.Length == 0 || segment == ".")
+                    continue;
+                if (segment == "..")
+                    return null;
+                normalized.Append('/').Append(segment);
+            }
+            return normalized.Length == 0 ? null : normalized.ToString();
+        }
+
+        // Nested children are joined to full paths the same way the materializer joins them
+        private static void Flatten(IEnumerable<ProjectFile> files, string parentPath, List<ProjectFile> result)
+        {
+            foreach (var file in files)
+            {
+                if (string.IsNullOrEmpty(file.Path))
+                    continue;
+                // A child path that already repeats its parent's is taken as it is
+                var joined = parentPath.Length > 0 && file.Path.StartsWith(parentPath + "/")
+                    ? file.Path
+                    : parentPath + (file.Path.StartsWith("/") ? file.Path : "/" + file.Path);
+                var path = Normalize(joined);
+                if (path == null)
+                    continue;
+                result.Add(new ProjectFile
+                {
+                    Path = path,
+                    Content = file.Content,
+                    IsBinary = file.IsBinary,
+                    IsDirectory = file.IsDirectory
+                });
+                // Children are joined to the path as written, then normalized, as the materializer does
+                if (file.IsDirectory && file.Children != null)
+                    Flatten(file.Children, joined, result);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+using System.Collections.Concurrent;
+using System.Security.Cryptography;
+using System.Text;
+using SnapSaves.Models;
+
+namespace SnapSaves.Helpers
+{
+    /// <summary>
+    /// Template images baked by tools/template/BakeTemplateImage: gzipped project containers
+    /// in wwwroot/Assets/Images, each with a .tsv index whose "tree" line hashes the files it
+    /// unpacks to. A project created from a template gets the image whose tree hash matches
+    /// the template's files, and until its first save the page is sent that image as it is,
+    /// instead of a container built and compressed for every project. The project keeps the
+    /// tree hash too, so an image baked again from a changed template is not sent to it.
+    /// </summary>
+    public static class TemplateImages
+    {
+        private static readonly string ImageDirectory = Path.Combine(Directory.GetCurrentDirectory(), "wwwroot", "Assets", "Images");
+        private static readonly Lazy<Dictionary<string, string>> ImagesByTree = new(LoadIndexes);
+        private static readonly Lazy<Dictionary<string, string>> TreesByImage = new(() => ImagesByTree.Value.ToDictionary(e => e.Value, e => e.Key));
+        private static readonly ConcurrentDictionary<string, byte[]> Images = new();
+
+        /// <summary>Returns the file name of the image with the given tree hash, or null if there is none.</summary>
+        public static string? Find(string treeHash)
+        {
+            return ImagesByTree.Value.TryGetValue(treeHash, out var name) ? name : null;
+        }
+
+        /// <summary>
+        /// Returns the gzipped image, read once and then kept in memory, or null if it is gone or
+        /// no longer has the given tree hash.
+        /// </summary>
+        public static byte[]? Read(string name, string treeHash)
+        {
+            if (!TreesByImage.Value.TryGetValue(name, out var tree) || tree != treeHash)
+                return null;
+            var path = Path.Combine(ImageDirectory, Path.GetFileName(name));
+            if (!File.Exists(path))
+                return null;
+            return Images.GetOrAdd(name, _ => File.ReadAllBytes(path));
+        }
+
+        /// <summary>
+        /// SHA-1 over one line "path\tsha1\n" per file, with paths relative to the project and in
+        /// ordinal order; BakeTemplateImage computes the same over the template directory.
+        /// </summary>
+        public static string TreeHash(Project project)
+        {
+            var prefix = "/" + project.Id + "/";
+            var lines = new SortedDictionary<string, string>(StringComparer.Ordinal);
+            foreach (var (path, data) in ProjectContainerWriter.Files(project))
+            {
+                var relative = path.StartsWith(prefix) ? path.Substring(prefix.Length) : path.TrimStart('/');
+                lines[relative] = Convert.ToHexString(SHA1.HashData(data)).ToLowerInvariant();
+            }
+            var text = new StringBuilder();
+            foreach (var line in lines)
+                text.Append(line.Key).Append('\t').Append(line.Value).Append('\n');
+            return Convert.ToHexString(SHA1.HashData(Encoding.UTF8.GetBytes(text.ToString()))).ToLowerInvariant();
+        }
+
+        // Maps the tree hash of every baked image to its file name
+        private static Dictionary<string, string> LoadIndexes()
+        {
+            var images = new Dictionary<string, string>();
+            if (!Directory.Exists(ImageDirectory))
+                return images;
+            foreach (var index in Directory.GetFiles(ImageDirectory, "*.snapimg.tsv"))
+            {
+                var tree = File.ReadLines(index).FirstOrDefault(l => l.StartsWith("tree\t"));
+                var image = index.Substring(0, index.Length - ".tsv".Length);
+                if (tree != null && File.Exists(image))
+                    images[tree.Substring(5)] = Path.GetFileName(image);
+            }
+            return images;
+        }
+    }
+}
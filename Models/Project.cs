@@ -29,6 +29,16 @@ namespace SnapSaves.Models
         [BsonElement("files")]
         public List<ProjectFile> Files { get; set; } = new List<ProjectFile>();
         public string? InstructionsId { get; set; }
+
+        // Baked template image (see TemplateImages) the project was created from; it stands in
+        // for the project's files until the first save, as long as it still has this tree hash
+        [BsonElement("templateImage")]
+        [BsonIgnoreIfNull]
+        public string? TemplateImage { get; set; }
+
+        [BsonElement("templateImageTree")]
+        [BsonIgnoreIfNull]
+        public string? TemplateImageTree { get; set; }
         [NotMapped]
         public Instructions? Instructions { get; set; }
 
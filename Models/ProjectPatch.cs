@@ -0,0 +1,19 @@
+namespace SnapSaves.Models
+{
+    /// <summary>
+    /// The changes to a project since the version the editor last opened or saved, as written
+    /// by ExportSnapCodeProjectCheerpJ --delta. Paths are full (/&lt;projectId&gt;/src/Main.java).
+    /// </summary>
+    public class ProjectPatch
+    {
+        public string Id { get; set; } = string.Empty;
+        public string? UserId { get; set; }
+
+        // Milliseconds since the epoch of the LastModified the patch was computed against
+        public long? BaseVersion { get; set; }
+
+        public List<ProjectFile> Added { get; set; } = new List<ProjectFile>();
+        public List<ProjectFile> Modified { get; set; } = new List<ProjectFile>();
+        public List<string> Deleted { get; set; } = new List<string>();
+    }
+}
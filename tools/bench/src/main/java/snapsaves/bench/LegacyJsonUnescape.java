@@ -0,0 +1,51 @@
+package snapsaves.bench;
+
+/**
+ * The StringBuilder-per-char JsonUnescape.unescapeJsonString that the materializer used
+ * before its scanner rewrite, kept so the unescape-string benchmarks can compare the two.
+ */
+class LegacyJsonUnescape {
+    static String unescapeJsonString(String s) {
+        StringBuilder sb = new StringBuilder();
+        int len = s.length();
+        for (int i = 0; i < len; ) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < len) {
+                char next = s.charAt(i + 1);
+                switch (next) {
+                    case 'n': sb.append('\n'); i += 2; break;
+                    case 't': sb.append('\t'); i += 2; break;
+                    case 'r': sb.append('\r'); i += 2; break;
+                    case 'b': sb.append('\b'); i += 2; break;
+                    case 'f': sb.append('\f'); i += 2; break;
+                    case '\\': sb.append('\\'); i += 2; break;
+                    case '\"': sb.append('\"'); i += 2; break;
+                    case 'u':
+                        if (i + 6 <= len) {
+                            String hex = s.substring(i + 2, i + 6);
+                            try {
+                                int code = Integer.parseInt(hex, 16);
+                                sb.append((char) code);
+                                i += 6;
+                            } catch (NumberFormatException e) {
+                                sb.append("\\u").append(hex);
+                                i += 6;
+                            }
+                        } else {
+                            sb.append("\\u");
+                            i += 2;
+                        }
+                        break;
+                    default: // unknown escape, copy literally
+                        sb.append(c).append(next);
+                        i += 2;
+                        break;
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+}
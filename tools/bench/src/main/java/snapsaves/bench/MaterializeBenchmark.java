@@ -0,0 +1,247 @@
+package snapsaves.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the project materializer. A synthetic project.json (see
+ * SyntheticProject for the knobs) is generated once per trial; the parse, unescape, Base64
+ * and write stages are then measured separately, writing to a temporary directory instead
+ * of /files, and once more to memory so that file-system cost can be told apart from decoding.
+ * <p>
+ * The write benchmarks go through the same handlers as a real open: ProjectPathPlan, then
+ * the worker pipeline when workers &gt; 0, then the writer and its finish pass. Every result
+ * is returned or handed to a Blackhole so none of the work can be optimized away. See
+ * README.md for usage and for allocation figures with -prof gc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MaterializeBenchmark {
+
+    /** The generated document and the content spans the writer would be handed. */
+    @State(Scope.Benchmark)
+    public static class Project {
+        @Param("200")
+        public int files;
+        @Param("3")
+        public int depth;
+        @Param("0.2")
+        public double binary;
+        @Param("0.02")
+        public double escapes;
+        @Param("262144")
+        public int maxSize;
+        @Param("42")
+        public long seed;
+
+        ByteBuffer json;
+        final List<String> texts = new ArrayList<>();
+        final List<int[]> textSpans = new ArrayList<>();
+        final List<int[]> base64Spans = new ArrayList<>();
+        final byte[] chunk = new byte[16 * 1024];
+        ByteBuffer unescaped;
+        CharBuffer unescapedChars;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            SyntheticProject project = new SyntheticProject();
+            project.files = files;
+            project.depth = depth;
+            project.binaryRatio = binary;
+            project.escapeDensity = escapes;
+            project.maxFileSize = maxSize;
+            project.seed = seed;
+            json = project.toJson();
+            collectSpans();
+        }
+
+        // Records the content spans the writer would be handed
+        private void collectSpans() throws IOException {
+            new ProjectJsonReader(json).read(new ProjectEntryHandler() {
+                @Override
+                public void directory(String path) { }
+
+                @Override
+                public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+                    if (contentStart < 0) return;
+                    if (encoding == Encoding.JSON_BASE64) {
+                        base64Spans.add(new int[] { contentStart, contentEnd });
+                        return;
+                    }
+                    textSpans.add(new int[] { contentStart, contentEnd });
+                    // Unescaping never grows the content, so the largest span bounds the output
+                    if (unescaped == null || unescaped.capacity() < contentEnd - contentStart) {
+                        unescaped = ByteBuffer.allocate(contentEnd - contentStart);
+                    }
+                    ByteBuffer span = src.duplicate();
+                    span.limit(contentEnd).position(contentStart);
+                    String text = StandardCharsets.UTF_8.decode(span).toString();
+                    texts.add(text);
+                    if (unescapedChars == null || unescapedChars.capacity() < text.length()) {
+                        unescapedChars = CharBuffer.allocate(text.length());
+                    }
+                }
+
+                @Override
+                public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) { }
+            });
+        }
+    }
+
+    /** Output of the write benchmarks, and the worker count of the pipeline in front of it. */
+    @State(Scope.Benchmark)
+    public static class Output {
+        /** 0 writes inline, as on single-core runtimes such as CheerpJ. */
+        @Param("0")
+        public int workers;
+        @Param("" + CreateSnapCodeProjectCheerpJ.DEFAULT_QUEUE_CAPACITY)
+        public int queue;
+
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void create(Project project) throws Exception {
+            dir = Files.createTempDirectory("materialize-bench");
+            // write-unchanged measures a reopen, so the manifest of a first open must exist
+            materialize(new CreateSnapCodeProjectCheerpJ(dir.toString(), CreateSnapCodeProjectCheerpJ.LogLevel.QUIET,
+                    new MaterializeMetrics(), false), project, this);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public int parse(Project p) throws IOException {
+        int[] entries = new int[1];
+        new ProjectJsonReader(p.json).read(new ProjectEntryHandler() {
+            @Override
+            public void directory(String path) {
+                entries[0]++;
+            }
+
+            @Override
+            public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+                entries[0]++;
+            }
+
+            @Override
+            public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+                entries[0]++;
+            }
+        });
+        return entries[0];
+    }
+
+    @Benchmark
+    public void unescapeString(Project p, Blackhole bh) {
+        for (String text : p.texts) bh.consume(JsonUnescape.unescapeJsonString(text));
+    }
+
+    @Benchmark
+    public void unescapeStringLegacy(Project p, Blackhole bh) {
+        for (String text : p.texts) bh.consume(LegacyJsonUnescape.unescapeJsonString(text));
+    }
+
+    // Unescapes into one reused CharBuffer, as a caller feeding a CharsetEncoder would
+    @Benchmark
+    public void unescapeChars(Project p, Blackhole bh) {
+        for (String text : p.texts) {
+            p.unescapedChars.clear();
+            JsonUnescape.unescapeJsonChars(text, 0, text.length(), p.unescapedChars);
+            bh.consume(p.unescapedChars.position());
+        }
+    }
+
+    @Benchmark
+    public void unescapeBytes(Project p, Blackhole bh) {
+        for (int[] span : p.textSpans) {
+            p.unescaped.clear();
+            JsonUnescape.unescapeJsonBytes(p.json, span[0], span[1], p.unescaped);
+            bh.consume(p.unescaped.position());
+        }
+    }
+
+    // Decodes the binaries through a chunk buffer, as the writer does
+    @Benchmark
+    public void base64(Project p, Blackhole bh) throws IOException {
+        for (int[] span : p.base64Spans) {
+            ByteBuffer content = p.json.duplicate();
+            content.limit(span[1]).position(span[0]);
+            try (InputStream in = Base64.getDecoder().wrap(new CreateSnapCodeProjectCheerpJ.ByteBufferInputStream(content))) {
+                for (int n; (n = in.read(p.chunk)) >= 0; ) bh.consume(n);
+            }
+        }
+        bh.consume(p.chunk);
+    }
+
+    // Materializes the whole project, rewriting every file as --full does
+    @Benchmark
+    public void write(Project p, Output out, Blackhole bh) throws Exception {
+        bh.consume(materialize(new CreateSnapCodeProjectCheerpJ(out.dir.toString(), CreateSnapCodeProjectCheerpJ.LogLevel.QUIET,
+                new MaterializeMetrics(), false), p, out));
+    }
+
+    // Reopens the project written in setup, so every file is skipped by its manifest entry
+    @Benchmark
+    public void writeUnchanged(Project p, Output out, Blackhole bh) throws Exception {
+        bh.consume(materialize(new CreateSnapCodeProjectCheerpJ(out.dir.toString(), CreateSnapCodeProjectCheerpJ.LogLevel.QUIET,
+                new MaterializeMetrics(), true), p, out));
+    }
+
+    // Materializes the whole project into memory: parse and decode cost without any file system
+    @Benchmark
+    public void writeMemory(Project p, Output out, Blackhole bh) throws Exception {
+        bh.consume(materialize(new CreateSnapCodeProjectCheerpJ(new MaterializeMemorySink(), CreateSnapCodeProjectCheerpJ.LogLevel.QUIET,
+                new MaterializeMetrics(), false), p, out));
+    }
+
+    // Reads the document through the handler chain CreateSnapCodeProjectCheerpJ.materializeProject builds for one project
+    static MaterializeMetrics materialize(CreateSnapCodeProjectCheerpJ root, Project p, Output out) throws Exception {
+        MaterializeMetrics metrics = new MaterializeMetrics();
+        CreateSnapCodeProjectCheerpJ writer = root.forProject(metrics);
+        MaterializePipeline pipeline = out.workers > 0 ? new MaterializePipeline(writer, out.workers, out.queue, metrics) : null;
+        ProjectJsonReader reader = new ProjectJsonReader(p.json);
+        try {
+            reader.read(new ProjectPathPlan(pipeline != null ? pipeline : writer, metrics, null));
+        } finally {
+            if (pipeline != null) pipeline.finish();
+        }
+        writer.scope(reader.getProjectId());
+        writer.finish();
+        return metrics;
+    }
+}
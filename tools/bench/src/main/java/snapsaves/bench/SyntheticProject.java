@@ -0,0 +1,125 @@
+package snapsaves.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a project.json shaped like the one JdkController sends (Newtonsoft with
+ * EscapeHtml, nested children) from a handful of knobs, so the materializer can be
+ * measured on projects of any size without real student data.
+ */
+class SyntheticProject {
+    /** Characters inserted at the escape density; the first eight are escaped by Newtonsoft. */
+    private static final String SPECIALS = "\"\\\n\t<>&'\u00e9\u4e2d\ud83d\ude00";
+    private static final String[] WORDS = { "public", "class", "void", "int", "return", "new", "if", "for",
+            "String", "actor", "world", "move", "turn", "getX", "getY", "setImage", "act", "x", "y", "i" };
+
+    int files = 200;
+    int depth = 3;
+    /** Fraction of files that are Base64-encoded binaries. */
+    double binaryRatio = 0.2;
+    /** Fraction of text characters that are quotes, backslashes, control, HTML or non-ASCII characters. */
+    double escapeDensity = 0.02;
+    /** Size of the largest file in bytes; the others are skewed towards small sizes like real projects. */
+    int maxFileSize = 256 * 1024;
+    long seed = 42;
+
+    private static final class Node {
+        final String name;
+        final List<Node> children = new ArrayList<>();
+        String content;
+        boolean isBinary;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    // Builds the document; the same knobs and seed always give the same bytes
+    ByteBuffer toJson() {
+        Random random = new Random(seed);
+        Node root = new Node("synthetic");
+        List<Node> dirs = new ArrayList<>();
+        dirs.add(root);
+        for (int d = 0; d < depth; d++) {
+            Node dir = new Node("pkg" + d);
+            dirs.get(random.nextInt(dirs.size())).children.add(dir);
+            dirs.add(dir);
+        }
+        for (int i = 0; i < files; i++) {
+            int size = i == 0 ? maxFileSize : (int) (maxFileSize * Math.pow(random.nextDouble(), 4));
+            boolean binary = random.nextDouble() < binaryRatio;
+            Node file = new Node("File" + i + (binary ? ".png" : ".java"));
+            file.isBinary = binary;
+            file.content = binary ? binaryContent(random, size) : textContent(random, size);
+            dirs.get(random.nextInt(dirs.size())).children.add(file);
+        }
+
+        StringBuilder json = new StringBuilder(files * 64 + maxFileSize * 2);
+        json.append("{\"Id\":\"synthetic\",\"Name\":\"Synthetic\",\"UserId\":null,\"Files\":[");
+        for (int i = 0; i < root.children.size(); i++) {
+            if (i > 0) json.append(',');
+            appendEntry(json, "/synthetic", root.children.get(i));
+        }
+        json.append("],\"InstructionsId\":null}");
+        return ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendEntry(StringBuilder json, String parent, Node node) {
+        boolean isDirectory = node.content == null;
+        json.append("{\"path\":\"").append(parent).append('/').append(node.name).append("\",\"content\":");
+        if (isDirectory) json.append("\"\"");
+        else appendEscaped(json, node.content);
+        json.append(",\"isBinary\":").append(node.isBinary).append(",\"isDirectory\":").append(isDirectory)
+                .append(",\"children\":[");
+        for (int i = 0; i < node.children.size(); i++) {
+            if (i > 0) json.append(',');
+            appendEntry(json, parent + "/" + node.name, node.children.get(i));
+        }
+        json.append("]}");
+    }
+
+    private String textContent(Random random, int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            if (random.nextDouble() < escapeDensity) {
+                int c = SPECIALS.codePointAt(SPECIALS.offsetByCodePoints(0, random.nextInt(SPECIALS.codePointCount(0, SPECIALS.length()))));
+                text.appendCodePoint(c);
+            } else if (random.nextInt(8) == 0) {
+                text.append(random.nextBoolean() ? ' ' : ';');
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    private static String binaryContent(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    // Escapes like Newtonsoft with StringEscapeHandling.EscapeHtml
+    private static void appendEscaped(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\t': json.append("\\t"); break;
+                case '<': case '>': case '&': case '\'':
+                    json.append(String.format("\\u%04x", (int) c));
+                    break;
+                default: json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Builds a slim runtime jar for playing (not editing) a project: starting from the
+ * MainClassName in build.snapcode and the project's own classes, it follows the class
+ * references in the bytecode through the runtime jars and keeps only what is reached.
+ * <p>
+ * A class reaches every class its constant pool names, in class entries, descriptors and
+ * signatures, and every class whose name appears as a string constant ("snapcj.CJEnv"),
+ * which covers most reflective loading. Resources are kept when a reached class names
+ * them or when they share a reached class's base name (PlayerPane.snp). What reflection
+ * reaches by other means goes in a keep-list; see greenfoot-play.keep and README.md.
+ */
+public class SlimRuntimeJar {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final Pattern CLASS_ATTRIBUTE = Pattern.compile("\\bClass=\"([\\w.$]+)\"");
+
+    private static final class Entry {
+        final String path;
+        final String jar;
+        final byte[] bytes;
+
+        Entry(String path, String jar, byte[] bytes) {
+            this.path = path;
+            this.jar = jar;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Every class by internal name (snap/view/View), first jar wins as on a class path. */
+    private final Map<String, Entry> classes = new LinkedHashMap<>();
+    /** Every other jar entry by path. */
+    private final Map<String, Entry> resources = new LinkedHashMap<>();
+    private final List<String> keep = new ArrayList<>();
+    private final List<String> drop = new ArrayList<>();
+    private final Set<String> reached = new HashSet<>();
+    private final Set<String> keptResources = new HashSet<>();
+    private final Set<String> unresolved = new TreeSet<>();
+    /** Classes the keep-list drops, with a class that referenced each. */
+    private final Map<String, String> dropped = new TreeMap<>();
+    private String current = "(keep-list)";
+    private final Deque<String> queue = new ArrayDeque<>();
+
+    public static void main(String[] args) throws Exception {
+        String projectDir = null, classesDir = null, keepFile = null, out = null;
+        List<String> jars = new ArrayList<>(), full = new ArrayList<>();
+        boolean verbose = false;
+        for (String arg : args) {
+            if (arg.startsWith("--project=")) projectDir = arg.substring(10);
+            else if (arg.startsWith("--classes=")) classesDir = arg.substring(10);
+            else if (arg.startsWith("--jars=")) jars.addAll(List.of(arg.substring(7).split(File.pathSeparator)));
+            else if (arg.startsWith("--keep=")) keepFile = arg.substring(7);
+            else if (arg.startsWith("--full=")) full.addAll(List.of(arg.substring(7).split(File.pathSeparator)));
+            else if (arg.startsWith("--out=")) out = arg.substring(6);
+            else if (arg.equals("-v")) verbose = true;
+        }
+        if (projectDir == null || classesDir == null || jars.isEmpty() || out == null) {
+            System.err.println("Usage: SlimRuntimeJar --project=DIR --classes=BIN --jars=A.jar:B.jar --out=play.jar [--keep=FILE] [--full=A.jar:B.jar] [-v]");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        String mainClass = mainClassName(new File(projectDir, "build.snapcode"));
+        if (mainClass == null) {
+            System.err.println("No MainClassName in " + projectDir + "/build.snapcode.");
+            System.exit(1);
+        }
+        SlimRuntimeJar slim = new SlimRuntimeJar();
+        if (keepFile != null) slim.loadKeepList(new File(keepFile));
+        // Project classes come first, as bin/ does on SnapCode's class path
+        List<String> projectClasses = slim.addDirectory(new File(classesDir), "", "bin");
+        for (String jar : jars) slim.addJar(new File(jar));
+
+        String main = mainClass.replace('.', '/');
+        if (!slim.classes.containsKey(main)) {
+            System.err.println("Main class '" + mainClass + "' is not in " + classesDir + ".");
+            System.exit(1);
+        }
+        slim.reach(main);
+        // Greenfoot instantiates worlds and actors by name, so every project class is a root
+        for (String name : projectClasses) slim.reach(name);
+        for (String name : new ArrayList<>(slim.classes.keySet())) {
+            if (slim.matches(slim.keep, name.replace('/', '.'))) slim.reach(name);
+        }
+        for (String path : slim.resources.keySet()) {
+            if (slim.matches(slim.keep, path)) slim.keepResource(path);
+        }
+        slim.run();
+
+        File outFile = new File(out);
+        slim.write(outFile, mainClass);
+        slim.report(outFile, jars, full, verbose);
+        System.out.println("Done in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // The MainClassName of a build.snapcode, or null
+    static String mainClassName(File buildFile) throws IOException {
+        String text = new String(Files.readAllBytes(buildFile.toPath()), StandardCharsets.UTF_8);
+        int key = text.indexOf("\"MainClassName\"");
+        if (key < 0) return null;
+        int open = text.indexOf('"', text.indexOf(':', key) + 1);
+        int close = open < 0 ? -1 : text.indexOf('"', open + 1);
+        return close < 0 ? null : text.substring(open + 1, close);
+    }
+
+    /**
+     * Keep-list lines are class patterns (snap.view.*, one package; snap.gfx.**, with
+     * subpackages; or a class name) or resource patterns containing '/'. A line starting
+     * with '-' drops what it matches instead, even if it is referenced.
+     */
+    private void loadKeepList(File file) throws IOException {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (line.startsWith("-")) drop.add(line.substring(1).trim());
+            else keep.add(line);
+        }
+    }
+
+    private List<String> addDirectory(File dir, String prefix, String origin) throws IOException {
+        List<String> added = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return added;
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) {
+                added.addAll(addDirectory(child, prefix + name + "/", origin));
+            } else if (name.endsWith(".class")) {
+                String className = prefix + name.substring(0, name.length() - 6);
+                classes.putIfAbsent(className, new Entry(prefix + name, origin, Files.readAllBytes(child.toPath())));
+                added.add(className);
+            }
+        }
+        return added;
+    }
+
+    private void addJar(File file) throws IOException {
+        try (JarFile jar = new JarFile(file)) {
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                if (entry.isDirectory() || entry.getName().equals(JarFile.MANIFEST_NAME)) continue;
+                byte[] bytes;
+                try (InputStream in = jar.getInputStream(entry)) {
+                    bytes = in.readAllBytes();
+                }
+                Entry e = new Entry(entry.getName(), file.getName(), bytes);
+                if (entry.getName().endsWith(".class")) {
+                    classes.putIfAbsent(entry.getName().substring(0, entry.getName().length() - 6), e);
+                } else {
+                    resources.putIfAbsent(entry.getName(), e);
+                }
+            }
+        }
+    }
+
+    private void reach(String name) {
+        if (reached.contains(name)) return;
+        if (matches(drop, name.replace('/', '.'))) {
+            if (classes.containsKey(name)) dropped.putIfAbsent(name.replace('/', '.'), current.replace('/', '.'));
+            return;
+        }
+        if (!classes.containsKey(name)) {
+            if (!isPlatformClass(name)) unresolved.add(name.replace('/', '.'));
+            return;
+        }
+        reached.add(name);
+        queue.add(name);
+    }
+
+    // Follows references until nothing new is reached
+    private void run() throws IOException {
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            current = name;
+            Entry entry = classes.get(name);
+            String dir = name.lastIndexOf('/') < 0 ? "" : name.substring(0, name.lastIndexOf('/') + 1);
+            String simple = name.substring(dir.length());
+            int dollar = simple.indexOf('$');
+            String base = dollar < 0 ? simple : simple.substring(0, dollar);
+            for (String utf8 : constantStrings(entry.bytes, name)) {
+                referencedClasses(utf8);
+                referencedResource(utf8, dir);
+            }
+            // Resources named after the class, such as PlayerPane.snp
+            for (String path : resources.keySet()) {
+                if (path.startsWith(dir) && path.indexOf('/', dir.length()) < 0 && path.startsWith(dir + base + ".")) keepResource(path);
+            }
+            // Services whose interface is reached bring in their implementations
+            Entry services = resources.get("META-INF/services/" + name.replace('/', '.'));
+            if (services != null) {
+                keepResource(services.path);
+                for (String line : new String(services.bytes, StandardCharsets.UTF_8).split("\n")) {
+                    String impl = line.replaceAll("#.*", "").trim();
+                    if (!impl.isEmpty()) reach(impl.replace('.', '/'));
+                }
+            }
+        }
+    }
+
+    // Reaches the classes a constant pool string names: descriptors, signatures, internal or dotted names
+    private void referencedClasses(String utf8) {
+        if (classes.containsKey(utf8)) reach(utf8);
+        else if (utf8.indexOf('.') > 0 && utf8.indexOf('/') < 0 && classes.containsKey(utf8.replace('.', '/'))) reach(utf8.replace('.', '/'));
+        for (int i = utf8.indexOf('L'); i >= 0; i = utf8.indexOf('L', i + 1)) {
+            int end = utf8.indexOf(';', i);
+            if (end < 0) break;
+            int generic = utf8.indexOf('<', i);
+            String name = utf8.substring(i + 1, generic >= 0 && generic < end ? generic : end);
+            if (classes.containsKey(name)) reach(name);
+        }
+        // Array class entries such as [Lsnap/view/View;
+        if (utf8.startsWith("[")) {
+            String element = utf8.replaceAll("^\\[+L?", "").replace(";", "");
+            if (classes.containsKey(element)) reach(element);
+        }
+    }
+
+    /**
+     * Keeps a resource named by a full path, relative to the referencing class's package, or
+     * relative to its pkg.images directory, where Image.getImageForClassResource() looks.
+     */
+    private void referencedResource(String utf8, String dir) throws IOException {
+        if (utf8.isEmpty() || utf8.length() > 200) return;
+        String path = utf8.startsWith("/") ? utf8.substring(1) : utf8;
+        if (resources.containsKey(path)) keepResource(path);
+        else if (resources.containsKey(dir + path)) keepResource(dir + path);
+        else if (resources.containsKey(dir + "pkg.images/" + path)) keepResource(dir + "pkg.images/" + path);
+    }
+
+    // Keeps a resource; a UI file also reaches the classes its Class attributes name
+    private void keepResource(String path) throws IOException {
+        if (matches(drop, path) || !keptResources.add(path) || !path.endsWith(".snp")) return;
+        Matcher m = CLASS_ATTRIBUTE.matcher(new String(resources.get(path).bytes, StandardCharsets.UTF_8));
+        while (m.find()) reach(m.group(1).replace('.', '/'));
+    }
+
+    /**
+     * Returns the Utf8 constants of a class file. Class, descriptor and string constants
+     * all point at these, so scanning them finds every name the class can mention.
+     */
+    static List<String> constantStrings(byte[] bytes, String name) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.getInt() != MAGIC) throw new IOException(name + " is not a class file");
+        buf.getShort();
+        buf.getShort();
+        int count = buf.getShort() & 0xFFFF;
+        List<String> strings = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = buf.get() & 0xFF;
+            switch (tag) {
+                case 1: {
+                    int length = buf.getShort() & 0xFFFF;
+                    strings.add(modifiedUtf8(bytes, buf.position(), length));
+                    buf.position(buf.position() + length);
+                    break;
+                }
+                case 3: case 4: buf.getInt(); break;
+                case 5: case 6: buf.getLong(); i++; break;
+                case 7: case 8: case 16: case 19: case 20: buf.getShort(); break;
+                case 9: case 10: case 11: case 12: case 17: case 18: buf.getInt(); break;
+                case 15: buf.get(); buf.getShort(); break;
+                default: throw new IOException(name + ": unknown constant pool tag " + tag);
+            }
+        }
+        return strings;
+    }
+
+    // Class files store strings in modified UTF-8; names and paths are ASCII in practice
+    private static String modifiedUtf8(byte[] bytes, int start, int length) {
+        return new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+
+    // True for classes the JVM itself provides
+    private static boolean isPlatformClass(String name) {
+        return name.startsWith("java/") || name.startsWith("javax/") || name.startsWith("jdk/") || name.startsWith("sun/")
+                || name.startsWith("com/sun/") || name.startsWith("org/w3c/") || name.startsWith("org/xml/");
+    }
+
+    /** Class patterns match dotted names, patterns with '/' match resource paths. */
+    private boolean matches(List<String> patterns, String name) {
+        boolean isResource = name.indexOf('/') >= 0;
+        for (String pattern : patterns) {
+            if ((pattern.indexOf('/') >= 0) != isResource) continue;
+            String separator = isResource ? "/" : ".";
+            if (pattern.endsWith(separator + "**")) {
+                if (name.startsWith(pattern.substring(0, pattern.length() - 2))) return true;
+            } else if (pattern.endsWith(separator + "*")) {
+                String prefix = pattern.substring(0, pattern.length() - 1);
+                if (name.startsWith(prefix) && name.indexOf(separator, prefix.length()) < 0) return true;
+            } else if (name.equals(pattern) || !isResource && name.startsWith(pattern + "$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Writes the kept classes and resources, in path order, with a manifest naming the main class
+    private void write(File out, String mainClass) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        Map<String, byte[]> entries = new TreeMap<>();
+        for (String name : reached) {
+            Entry entry = classes.get(name);
+            entries.put(entry.path, entry.bytes);
+        }
+        for (String path : keptResources) entries.put(path, resources.get(path).bytes);
+        if (out.getAbsoluteFile().getParentFile() != null) out.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream file = Files.newOutputStream(out.toPath()); JarOutputStream jar = new JarOutputStream(file, manifest)) {
+            jar.setLevel(Deflater.BEST_COMPRESSION);
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                jar.putNextEntry(new JarEntry(e.getKey()));
+                jar.write(e.getValue());
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private void report(File out, List<String> jars, List<String> full, boolean verbose) {
+        Map<String, int[]> perJar = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> e : classes.entrySet()) {
+            int[] counts = perJar.computeIfAbsent(e.getValue().jar, k -> new int[4]);
+            counts[0]++;
+            counts[2] += e.getValue().bytes.length;
+            if (reached.contains(e.getKey())) {
+                counts[1]++;
+                counts[3] += e.getValue().bytes.length;
+            }
+        }
+        for (Map.Entry<String, int[]> e : perJar.entrySet()) {
+            int[] c = e.getValue();
+            System.out.println(String.format(Locale.ROOT, "  %-26s %5d of %5d classes kept (%d of %d bytes)", e.getKey(), c[1], c[0], c[3], c[2]));
+        }
+        System.out.println("  " + keptResources.size() + " of " + resources.size() + " resources kept");
+        long runtime = 0;
+        for (String jar : jars) runtime += new File(jar).length();
+        System.out.println("Slim jar " + out + ": " + out.length() + " bytes, from " + runtime + " bytes of runtime jars");
+        if (!full.isEmpty()) {
+            long total = 0;
+            for (String jar : full) total += new File(jar).length();
+            System.out.println(String.format(Locale.ROOT, "Full class path: %d bytes; the slim jar is %.1f%% of it", total, out.length() * 100.0 / total));
+        }
+        if (!dropped.isEmpty()) {
+            System.out.println(dropped.size() + " referenced classes were dropped by the keep-list" + (verbose ? ":" : " (-v lists them)"));
+            if (verbose) for (Map.Entry<String, String> e : dropped.entrySet()) System.out.println("  " + e.getKey() + " (from " + e.getValue() + ")");
+        }
+        if (!unresolved.isEmpty()) {
+            System.out.println(unresolved.size() + " referenced classes are in none of the jars" + (verbose ? ":" : " (-v lists them)"));
+            if (verbose) for (String name : unresolved) System.out.println("  " + name);
+        }
+    }
+}
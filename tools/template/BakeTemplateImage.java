@@ -0,0 +1,246 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bakes a template directory such as wwwroot/Assets/AppleCatchers into a template image: a
+ * gzipped project.snapbin container the materializer unpacks in one pass, with a sidecar
+ * index (&lt;image&gt;.tsv) holding the image version, a hash of the file tree and the
+ * SHA-1 of every file. With --classes, compiled classes go into the image as class cache
+ * entries, which the materializer restores to bin/ so that a new project opens built.
+ * <p>
+ * The image is made for the project id given with --id (the directory name by default) and
+ * is written to any other project with the materializer's --project=ID. The server serves
+ * it to projects whose files still have the tree hash of the sidecar, so one image serves
+ * every project created from the template until the first save. Before it is written, the
+ * image is read back through the materializer into memory and checked against the hashes.
+ * See README.md for usage.
+ */
+public class BakeTemplateImage {
+    private static final String HEADER = "# template image v1";
+    private static final byte[] MAGIC = "SNAPBIN1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final class Entry {
+        final String path;
+        final int flags;
+        final byte[] data;
+
+        Entry(String path, int flags, byte[] data) {
+            this.path = path;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
+    private final File templateDir;
+    private final String projectId;
+    private final List<Entry> entries = new ArrayList<>();
+    /** SHA-1 of every file, by path relative to the project. */
+    private final Map<String, String> hashes = new TreeMap<>();
+    private int classes;
+
+    BakeTemplateImage(File templateDir, String projectId) {
+        this.templateDir = templateDir;
+        this.projectId = projectId;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        String projectId = null, classesDir = null, toolchain = null;
+        for (String arg : args) {
+            if (arg.startsWith("--id=")) projectId = arg.substring(5);
+            else if (arg.startsWith("--classes=")) classesDir = arg.substring(10);
+            else if (arg.startsWith("--toolchain=")) toolchain = arg.substring(12);
+            else positional.add(arg);
+        }
+        if (positional.size() != 2 || (classesDir != null) != (toolchain != null)) {
+            System.err.println("Usage: BakeTemplateImage <templateDir> <image.snapimg> [--id=ID] [--classes=BIN --toolchain=CLASSPATH]");
+            System.exit(2);
+        }
+        File templateDir = new File(positional.get(0));
+        File image = new File(positional.get(1));
+        if (!templateDir.isDirectory()) {
+            System.err.println("Template directory '" + templateDir + "' not found.");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        BakeTemplateImage baker = new BakeTemplateImage(templateDir, projectId != null ? projectId : templateDir.getName());
+        baker.addTree(templateDir, "");
+        if (classesDir != null && !baker.addClasses(new File(classesDir), toolchain)) {
+            System.err.println("Error: the classes in '" + classesDir + "' are missing some sources or older than them.");
+            System.exit(1);
+        }
+        byte[] container = baker.container();
+        baker.verify(container);
+        String version = CreateSnapCodeProjectCheerpJ.hex(MessageDigest.getInstance("SHA-1").digest(container)).substring(0, 12);
+        baker.write(image, container, version, toolchain);
+        System.out.println("Baked " + baker.hashes.size() + " files and " + baker.classes + " classes into " + image
+                + " (" + image.length() + " bytes, version " + version + ", tree " + baker.treeHash() + ") in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Adds the directories and files under dir in name order, directories before their contents
+    private void addTree(File dir, String relative) throws IOException {
+        String[] names = dir.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(dir, name);
+            String path = ProjectPathPlan.normalize(relative + "/" + name);
+            if (child.isDirectory()) {
+                entries.add(new Entry("/" + projectId + path, ProjectContainerReader.FLAG_DIRECTORY, new byte[0]));
+                addTree(child, path);
+            } else {
+                byte[] data = Files.readAllBytes(child.toPath());
+                boolean text = ExportSnapCodeProjectCheerpJ.isText(data, data.length);
+                entries.add(new Entry("/" + projectId + path, text ? 0 : ProjectContainerReader.FLAG_BINARY, data));
+                hashes.put(path.substring(1), sha1(data));
+            }
+        }
+    }
+
+    /**
+     * Adds the classes in bin as class cache entries, keyed the way MaterializeClassCache
+     * keys them. Returns false if bin does not hold a class for every source, no older than it.
+     */
+    private boolean addClasses(File bin, String toolchain) throws IOException {
+        File work = Files.createTempDirectory("template-image").toFile();
+        try {
+            File project = new File(work, projectId);
+            copyTree(templateDir, project);
+            // Copied after the sources, so the classes are at least as new
+            copyTree(bin, new File(project, "bin"));
+            File cache = new File(work, "classes");
+            classes = new MaterializeClassCache(project, cache, toolchain).collect();
+            if (classes < 0) return false;
+            addCache(cache, "");
+            return true;
+        } finally {
+            delete(work);
+        }
+    }
+
+    private void addCache(File dir, String relative) throws IOException {
+        String[] names = dir.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) addCache(child, relative + "/" + name);
+            else entries.add(new Entry(relative + "/" + name, ProjectContainerReader.FLAG_CLASS_CACHE, Files.readAllBytes(child.toPath())));
+        }
+    }
+
+    // Lays the entries out as described in ProjectContainerReader
+    private byte[] container() throws IOException {
+        byte[] id = projectId.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> paths = new ArrayList<>();
+        long offset = MAGIC.length + 4 + 4 + id.length;
+        for (Entry entry : entries) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            offset += 1 + 2 + path.length + 8 + 8;
+        }
+        ByteBuffer table = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+        table.put(MAGIC).putInt(entries.size()).putInt(id.length).put(id);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            table.put((byte) entry.flags).putShort((short) paths.get(i).length).put(paths.get(i));
+            table.putLong(offset).putLong(entry.data.length);
+            offset += entry.data.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) offset);
+        out.write(table.array());
+        for (Entry entry : entries) out.write(entry.data);
+        return out.toByteArray();
+    }
+
+    // Unpacks the container into memory the way the materializer does and compares every file with its hash
+    private void verify(byte[] container) throws IOException {
+        MaterializeMemorySink sink = new MaterializeMemorySink();
+        CreateSnapCodeProjectCheerpJ writer = new CreateSnapCodeProjectCheerpJ(sink, CreateSnapCodeProjectCheerpJ.LogLevel.QUIET,
+                new MaterializeMetrics(), false);
+        ProjectContainerReader reader = new ProjectContainerReader(ByteBuffer.wrap(container), "verify");
+        reader.read(new ProjectPathPlan(writer, new MaterializeMetrics()));
+        writer.finish();
+        Map<String, String> unpacked = new TreeMap<>();
+        for (Map.Entry<String, byte[]> e : sink.files().entrySet()) {
+            unpacked.put(e.getKey().substring(e.getKey().indexOf("/verify/") + 8), sha1(e.getValue()));
+        }
+        if (!unpacked.equals(hashes)) throw new IOException("The image does not unpack to the template's files");
+        if (classes > 0 && !reader.hasClassCache()) throw new IOException("The image lost its class cache entries");
+    }
+
+    private void write(File image, byte[] container, String version, String toolchain) throws IOException {
+        File parent = image.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File temp = new File(image.getPath() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp.toPath()), 64 * 1024)) {
+            out.write(container);
+        }
+        File index = new File(image.getPath() + ".tsv");
+        try (BufferedWriter w = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER + "\n");
+            w.write("version\t" + version + "\n");
+            w.write("tree\t" + treeHash() + "\n");
+            w.write("classes\t" + classes + "\n");
+            if (toolchain != null) w.write("toolchain\t" + toolchain + "\n");
+            for (Map.Entry<String, String> e : hashes.entrySet()) {
+                w.write("file\t" + e.getValue() + "\t" + e.getKey() + "\n");
+            }
+        }
+        Files.move(temp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * SHA-1 over one line "&lt;path&gt;\t&lt;sha1&gt;\n" per file, in ordinal path order. The server
+     * computes the same over a project's files (TemplateImages.TreeHash) to match it to an image.
+     */
+    private String treeHash() throws IOException {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> e : hashes.entrySet()) {
+            lines.write((e.getKey() + "\t" + e.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return sha1(lines.toByteArray());
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            return CreateSnapCodeProjectCheerpJ.hex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void copyTree(File from, File to) throws IOException {
+        to.mkdirs();
+        String[] names = from.list();
+        if (names == null) return;
+        for (String name : names) {
+            File child = new File(from, name);
+            if (child.isDirectory()) copyTree(child, new File(to, name));
+            else Files.copy(child.toPath(), new File(to, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        file.delete();
+    }
+}
@@ -1,246 +1,1078 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
 
-public class CreateSnapCodeProjectCheerpJ {
+public class CreateSnapCodeProjectCheerpJ implements ProjectEntryHandler {
+    private static final int BINARY_CHUNK_SIZE = 16 * 1024;
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    /** A guess: the pipeline's speed-up has not been measured on a multi-core machine (see tools/bench/README.md). */
+    private static final int MAX_DEFAULT_WORKERS = 4;
+    private static final long DEFAULT_POLL_MILLIS = 250;
+    /** Smaller sources are decoded again rather than copied; a copy costs more than unescaping them. */
+    private static final int MIN_BLOB_SIZE = 1024;
+    /** Content up to this size is unescaped into the writer's reusable direct buffer. */
+    private static final int MAX_SCRATCH_SIZE = 256 * 1024;
+    /** Largest array the JVM reliably allocates. */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    /** A gzip trailer's size is trusted up to this many times the compressed length; larger documents grow as read. */
+    private static final int MAX_GZIP_PRESIZE_RATIO = 16;
+
+    /** QUIET prints only the summary line, INFO lists every file, DEBUG also dumps text content. */
+    enum LogLevel { QUIET, INFO, DEBUG }
+
+    private static final String USAGE = "Usage: CreateSnapCodeProjectCheerpJ [FILE...] [--in=DIR|FILE] [--out=DIR|memory|FILE.zip]"
+            + " [--project=ID] [--full] [--priority] [--run-id=ID] [--workers=N] [--queue=N] [-v | -vv | --log=quiet|info|debug]"
+            + " [--daemon [--poll=MS]] [--toolchain=CLASSPATH] [--dependencies=TABLE [--maven-cache=DIR]]";
+
+    private final MaterializeSink sink;
+    /** The sink's root: prefixed to project paths in messages and, for a local sink, to reach the files. */
+    private final String outputRoot;
+    private final LogLevel logLevel;
+    private final MaterializeMetrics metrics;
+    private final boolean incremental;
+    private final byte[] binaryChunk = new byte[BINARY_CHUNK_SIZE];
+    private final Map<String, MaterializeManifest> manifests;
+    private final MaterializeBlobStore blobs;
+    /** Directories this project's writers created or found, so each is checked once per run. */
+    private final Set<String> knownDirectories;
+    /** The project being materialized; only its directory gets a manifest, and only it is cleaned up. */
+    private volatile String projectDir;
+    private final MessageDigest digest;
+    private ByteBuffer scratch;
+    /** The chunked file being assembled, between its first and last piece. */
+    private ChunkedFile chunked;
+
+    /** A file that arrives in pieces; it is written in place and checked once complete. */
+    private static final class ChunkedFile {
+        final String path;
+        final Chunk first;
+        final MessageDigest sha1;
+        SeekableByteChannel out;
+        int next;
+        long size;
+
+        ChunkedFile(String path, Chunk first, MessageDigest sha1) {
+            this.path = path;
+            this.first = first;
+            this.sha1 = sha1;
+        }
+    }
+
+    public CreateSnapCodeProjectCheerpJ(String outputRoot) {
+        this(outputRoot, LogLevel.QUIET, new MaterializeMetrics(), true);
+    }
+
+    /**
+     * When incremental is false every file is rewritten, but a fresh manifest is still
+     * recorded so the next open can skip unchanged files again.
+     */
+    CreateSnapCodeProjectCheerpJ(String outputRoot, LogLevel logLevel, MaterializeMetrics metrics, boolean incremental) {
+        this(new MaterializeFileSink(outputRoot), logLevel, metrics, incremental);
+    }
+
+    /** Writes to any sink; one that is not local is always written in full, without manifests or blobs. */
+    CreateSnapCodeProjectCheerpJ(MaterializeSink sink, LogLevel logLevel, MaterializeMetrics metrics, boolean incremental) {
+        this(sink, logLevel, metrics, incremental, new HashMap<>(), sink.isLocal()
+                ? MaterializeBlobStore.load(new File(sink.root() + "/.materialize/blobs.tsv"), sink.root())
+                : MaterializeBlobStore.empty(), ConcurrentHashMap.newKeySet());
+    }
+
+    private CreateSnapCodeProjectCheerpJ(MaterializeSink sink, LogLevel logLevel, MaterializeMetrics metrics, boolean incremental,
+                                         Map<String, MaterializeManifest> manifests, MaterializeBlobStore blobs,
+                                         Set<String> knownDirectories) {
+        this.sink = sink;
+        this.outputRoot = sink.root();
+        this.logLevel = logLevel;
+        this.metrics = metrics;
+        this.incremental = incremental;
+        this.manifests = manifests;
+        this.blobs = blobs;
+        this.knownDirectories = knownDirectories;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Command-line settings shared by every project of a run. */
+    private static final class Options {
+        LogLevel logLevel = LogLevel.QUIET;
+        boolean incremental = true;
+        int workers = defaultWorkers();
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        String projectId;
+        boolean priority;
+        String runId = "";
+        /** The page's class path; compiled classes are restored only for the toolchain that built them. */
+        String toolchain;
+        /** Table of bundled jars that build.snapcode dependencies resolve to; null to leave them to SnapCode. */
+        File dependencies;
+        File mavenCache = new File(System.getProperty("user.home"), "maven_cache");
+    }
+
+    /**
+     * Without file arguments, materializes the single project the page put in /str. Batch mode:
+     * every file argument is materialized in turn, and a project.json whose root is an array
+     * holds several projects. Daemon mode (--daemon) keeps the JVM running and materializes
+     * each /str/project-*.json (or .json.gz, .snapbin, .zip) that appears, until
+     * /str/materialize.stop exists. Both modes print the latency of every project.
+     * <p>
+     * --in=DIR replaces /str as the place inputs are looked for (--in=FILE names one input),
+     * and --out sets the output: a directory (default /files), "memory" to keep the files in
+     * memory and only measure, or a path ending in .zip for a project archive. --project=ID
+     * names the project a zip or a template image (see BakeTemplateImage) is written to; a
+     * single-project document may then only write to, and clean up, that project's directory.
+     * <p>
+     * With --toolchain=CLASSPATH, compiled classes the exporter cached for exactly these
+     * sources and this class path are restored to bin/, so SnapCode need not rebuild them.
+     * With --dependencies=TABLE, the Maven dependencies of build.snapcode are resolved to
+     * bundled jars in SnapCode's Maven cache (--maven-cache, user.home/maven_cache by default).
+     */
     public static void main(String[] args) throws Exception {
-        File jsonFile = new File("/str/project.json");
-        if (!jsonFile.exists()) {
-            System.err.println("project.json not found in /str/");
-            return;
+        Options options = new Options();
+        List<File> inputs = new ArrayList<>();
+        boolean daemon = false;
+        long pollMillis = DEFAULT_POLL_MILLIS;
+        File inputDir = new File("/str");
+        String output = "/files";
+        for (String arg : args) {
+            try {
+                if (arg.equals("--full")) options.incremental = false;
+                else if (arg.startsWith("--project=")) options.projectId = arg.substring(10);
+                else if (arg.startsWith("--workers=")) options.workers = Integer.parseInt(arg.substring(10));
+                else if (arg.startsWith("--queue=")) options.queueCapacity = Integer.parseInt(arg.substring(8));
+                else if (arg.equals("-v")) options.logLevel = LogLevel.INFO;
+                else if (arg.equals("-vv")) options.logLevel = LogLevel.DEBUG;
+                else if (arg.startsWith("--log=")) options.logLevel = parseLogLevel(arg.substring(6));
+                else if (arg.equals("--daemon")) daemon = true;
+                else if (arg.equals("--priority")) options.priority = true;
+                else if (arg.startsWith("--run-id=")) options.runId = arg.substring(9);
+                else if (arg.startsWith("--toolchain=")) options.toolchain = arg.substring(12);
+                else if (arg.startsWith("--dependencies=")) options.dependencies = new File(arg.substring(15));
+                else if (arg.startsWith("--maven-cache=")) options.mavenCache = new File(arg.substring(14));
+                else if (arg.startsWith("--poll=")) pollMillis = Long.parseLong(arg.substring(7));
+                else if (arg.startsWith("--in=")) {
+                    File in = new File(arg.substring(5));
+                    if (in.isDirectory()) inputDir = in;
+                    else inputs.add(in);
+                }
+                else if (arg.startsWith("--out=")) output = arg.substring(6);
+                else if (!arg.startsWith("-")) inputs.add(new File(arg));
+                else throw new IllegalArgumentException("unknown option");
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException from the numeric options
+                System.err.println("Error: bad option '" + arg + "': "
+                        + (e instanceof NumberFormatException ? "not a number" : e.getMessage()));
+                System.err.println(USAGE);
+                return;
+            }
+        }
+
+        // One writer per run holds the blob store; each project gets its own writer from it
+        MaterializeSink sink = output.equals("memory") ? new MaterializeMemorySink()
+                : output.endsWith(".zip") ? new MaterializeZipSink(output) : new MaterializeFileSink(output);
+        CreateSnapCodeProjectCheerpJ root = new CreateSnapCodeProjectCheerpJ(sink, options.logLevel,
+                new MaterializeMetrics(), options.incremental);
+        List<Long> latencies = new ArrayList<>();
+        if (daemon) {
+            runDaemon(root, inputDir, options, pollMillis, latencies);
+        } else {
+            if (inputs.isEmpty()) {
+                // Prefer the binary container, then a zip archive; project.json (possibly gzipped) is the fallback
+                File inputFile = new File(inputDir, "project.snapbin");
+                if (!inputFile.exists()) inputFile = new File(inputDir, "project.zip");
+                if (!inputFile.exists()) inputFile = new File(inputDir, "project.json");
+                if (!inputFile.exists()) inputFile = new File(inputDir, "project.json.gz");
+                if (!inputFile.exists()) {
+                    System.err.println("project.json not found in " + inputDir + "/");
+                    return;
+                }
+                inputs.add(inputFile);
+            }
+            for (File input : inputs) materialize(root, input, options, latencies);
         }
+        if (daemon || latencies.size() > 1) System.out.println(batchSummary(latencies));
+        sink.close();
+        if (sink instanceof MaterializeZipSink) System.out.println("Wrote project archive " + output);
+        else if (sink instanceof MaterializeMemorySink) System.out.println("Kept " + ((MaterializeMemorySink) sink).size() + " bytes in memory");
+    }
 
-        String json = readAll(jsonFile);
-        if (json.startsWith("\"") && json.endsWith("\"")) {
-            // Remove outer quotes
-            json = json.substring(1, json.length() - 1);
-            // Unescape inner quotes and backslashes
-            json = json.replaceAll("\\\\\"", "\"").replaceAll("\\\\\\\\", "\\\\");
+    // Polls dir for project drops; a drop is processed again if it is replaced with new content
+    private static void runDaemon(CreateSnapCodeProjectCheerpJ root, File dir, Options options, long pollMillis,
+                                  List<Long> latencies) throws Exception {
+        Map<String, String> processed = new HashMap<>();
+        System.out.println("Watching " + dir + " for project-*.json; create materialize.stop there to exit");
+        while (!new File(dir, "materialize.stop").exists()) {
+            String[] names = dir.list();
+            if (names != null) {
+                Arrays.sort(names);
+                for (String name : names) {
+                    if (!name.startsWith("project-") || !(name.endsWith(".json") || name.endsWith(".json.gz")
+                            || name.endsWith(".snapbin") || name.endsWith(".zip"))) continue;
+                    File input = new File(dir, name);
+                    String version = input.length() + ":" + input.lastModified();
+                    if (version.equals(processed.put(name, version))) continue;
+                    materialize(root, input, options, latencies);
+                }
+            }
+            Thread.sleep(pollMillis);
         }
+    }
 
-        // Find the Files array
-        int filesStart = json.indexOf("\"Files\"");
-        if (filesStart < 0) {
+    /**
+     * Materializes every project in one input file and adds their latencies. Errors are
+     * reported and end only this file, so a batch or daemon carries on with the next one.
+     */
+    private static void materialize(CreateSnapCodeProjectCheerpJ root, File inputFile, Options options,
+                                    List<Long> latencies) throws InterruptedException {
+        long runStart = System.nanoTime();
+        MaterializeMetrics metrics = new MaterializeMetrics();
+        try {
+            // A zip is streamed entry by entry, everything else is read into one buffer
+            boolean isZip = inputFile.getName().endsWith(".zip");
+            ByteBuffer input = isZip ? null : readAll(inputFile);
+            metrics.inputBytes = isZip ? inputFile.length() : input.limit();
+            metrics.readNanos = System.nanoTime() - runStart;
+
+            // Any input may arrive gzipped, whatever its name; it is inflated straight into the parse buffer
+            if (!isZip && isGzip(input)) {
+                long start = System.nanoTime();
+                input = gunzip(input);
+                metrics.decodeNanos += System.nanoTime() - start;
+                if (options.logLevel != LogLevel.QUIET) System.out.println("Inflated " + metrics.inputBytes + " bytes to " + input.limit());
+            }
+
+            boolean isContainer = !isZip && ProjectContainerReader.isContainer(input);
+            if (!isZip && !isContainer && input.limit() >= 2 && input.get(0) == '"' && input.get(input.limit() - 1) == '"') {
+                long start = System.nanoTime();
+                input = unquote(input);
+                metrics.decodeNanos += System.nanoTime() - start;
+            }
+
+            if (isZip || isContainer) {
+                materializeProject(root, inputFile, isZip ? null : new ProjectContainerReader(input, options.projectId), null,
+                        options, metrics, runStart, latencies);
+                return;
+            }
+            ProjectJsonReader reader = new ProjectJsonReader(input, inputFile.getAbsoluteFile().getParentFile());
+            if (!reader.isBatch()) {
+                materializeProject(root, inputFile, null, reader, options, metrics, runStart, latencies);
+                return;
+            }
+            // The first project of a batch document carries the time spent reading the file
+            while (reader.nextProject()) {
+                materializeProject(root, inputFile, null, reader, options, metrics, runStart, latencies);
+                metrics = new MaterializeMetrics();
+                runStart = System.nanoTime();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error: could not materialize '" + inputFile + "': " + e);
+        }
+    }
+
+    // Streams one project's entries straight to a writer, or to worker threads through a bounded queue
+    private static void materializeProject(CreateSnapCodeProjectCheerpJ root, File inputFile, ProjectContainerReader container,
+                                           ProjectJsonReader json, Options options, MaterializeMetrics metrics,
+                                           long runStart, List<Long> latencies) throws IOException, InterruptedException {
+        CreateSnapCodeProjectCheerpJ writer = root.forProject(metrics);
+        // Zip entries can only be read in order, so they are always written inline and never prioritized
+        boolean isZip = container == null && json == null;
+        // A single project named on the command line is the only one the document may write to or clean up
+        String scope = json != null && json.isBatch() ? null : options.projectId;
+        writer.scope(scope);
+        MaterializePriority priority = options.priority && !isZip ? new MaterializePriority(writer) : null;
+        MaterializePipeline pipeline = options.workers > 0 && !isZip && priority == null
+                ? new MaterializePipeline(writer, options.workers, options.queueCapacity, metrics) : null;
+        // Paths are normalized and deduplicated before they reach the writer; zip entries are normalized by their reader
+        ProjectEntryHandler handler = new ProjectPathPlan(priority != null ? priority : pipeline != null ? pipeline : writer, metrics, scope);
+        boolean found = true;
+        String projectId;
+        long start = System.nanoTime();
+        long handlerNanos = metrics.handlerNanos();
+        try {
+            if (isZip) {
+                ProjectZipReader reader = new ProjectZipReader(inputFile, options.projectId);
+                reader.read(writer);
+                projectId = reader.getProjectId();
+            } else if (container != null) {
+                container.read(handler);
+                projectId = container.getProjectId();
+            } else {
+                found = json.isBatch() ? json.readProject(handler) : json.read(handler);
+                projectId = json.getProjectId();
+            }
+        } finally {
+            // Time spent in the handler callbacks is already booked as hash/decode/write/queue wait
+            metrics.parseNanos = System.nanoTime() - start - (metrics.handlerNanos() - handlerNanos);
+            if (pipeline != null) pipeline.finish();
+        }
+        if (!found) {
             System.err.println("No 'Files' array found in project.json");
             return;
         }
-        int arrayStart = json.indexOf('[', filesStart);
-        int arrayEnd = findMatchingBracket(json, arrayStart);
-        if (arrayStart < 0 || arrayEnd < 0) {
-            System.err.println("Malformed 'Files' array in project.json");
+        // Otherwise the document names its own project once it has been read
+        if (scope == null) writer.scope(projectId);
+        if (container != null && container.hasClassCache()) writeImageClassCache(writer, container, projectId);
+        boolean markers = priority != null && writer.isLocal() && projectId != null && !projectId.isEmpty();
+        if (priority != null) {
+            if (markers) {
+                writer.metadataFile(projectId, "ready-core").delete();
+                writer.metadataFile(projectId, "ready-all").delete();
+            }
+            writePhase(writer, options, metrics, priority::replayCore);
+            // SnapCode starts building as soon as it sees the sources, so their classes have to be there first
+            restoreClasses(writer, projectId, options, metrics);
+            resolveDependencies(writer, projectId, options, metrics);
+            metrics.readyCoreNanos = System.nanoTime() - runStart;
+            if (markers) writer.writeMarker(projectId, "ready-core", options.runId);
+            System.out.println("[ready] core " + metrics.readyCoreNanos / 1_000_000 + " ms");
+            writePhase(writer, options, metrics, priority::replayAssets);
+        }
+        writer.finish();
+        if (priority == null) {
+            restoreClasses(writer, projectId, options, metrics);
+            resolveDependencies(writer, projectId, options, metrics);
+        }
+        metrics.wallNanos = System.nanoTime() - runStart;
+        latencies.add(metrics.wallNanos);
+        if (markers) {
+            writer.writeMarker(projectId, "ready-all", options.runId);
+            System.out.println("[ready] all " + metrics.wallNanos / 1_000_000 + " ms");
+        }
+
+        System.out.println((projectId != null ? projectId + ": " : "") + metrics.summary());
+        if (writer.isLocal() && projectId != null && !projectId.isEmpty()) {
+            try {
+                metrics.write(writer.metadataFile(projectId, "metrics.json"), projectId);
+            } catch (IOException e) {
+                System.err.println("Warning: could not write materialize metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    // Seeds the class cache from a template image, unless the project already has one of its own
+    private static void writeImageClassCache(CreateSnapCodeProjectCheerpJ writer, ProjectContainerReader container, String projectId) {
+        if (!writer.isLocal() || projectId == null || projectId.isEmpty()) return;
+        File dir = writer.metadataFile(projectId, "classes");
+        if (new File(dir, "index.tsv").exists()) return;
+        try {
+            container.writeClassCache(dir);
+        } catch (IOException e) {
+            System.err.println("Warning: could not write the template's compiled classes: " + e.getMessage());
+        }
+    }
+
+    // Restores the project's cached classes if they were built from the sources now on disk
+    private static void restoreClasses(CreateSnapCodeProjectCheerpJ writer, String projectId, Options options,
+                                       MaterializeMetrics metrics) {
+        if (options.toolchain == null || !writer.isLocal() || projectId == null || projectId.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            MaterializeClassCache cache = new MaterializeClassCache(new File(writer.outputRoot, projectId),
+                    writer.metadataFile(projectId, "classes"), options.toolchain);
+            metrics.classesRestored = cache.restore();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning: could not restore compiled classes: " + e.getMessage());
+        }
+        metrics.writeNanos += System.nanoTime() - start;
+        if (metrics.classesRestored >= 0) System.out.println("Restored " + metrics.classesRestored + " compiled classes from the class cache");
+    }
+
+    // Puts the bundled jars for the project's Maven dependencies where SnapCode looks before downloading
+    private static void resolveDependencies(CreateSnapCodeProjectCheerpJ writer, String projectId, Options options,
+                                            MaterializeMetrics metrics) {
+        if (options.dependencies == null || !writer.isLocal() || projectId == null || projectId.isEmpty()) return;
+        File buildFile = new File(new File(writer.outputRoot, projectId), "build.snapcode");
+        if (!buildFile.isFile()) return;
+        long start = System.nanoTime();
+        try {
+            MaterializeDependencies resolver = MaterializeDependencies.load(options.dependencies, options.mavenCache);
+            resolver.resolve(buildFile, writer.metadataFile(projectId, "classpath.tsv"));
+            metrics.dependencies = resolver.resolved;
+            if (options.logLevel != LogLevel.QUIET) System.out.println("Resolved " + resolver.resolved + " dependencies ("
+                    + resolver.copied + " copied, " + resolver.unresolved + " left to SnapCode)");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning: could not resolve dependencies: " + e.getMessage());
+        }
+        metrics.resolveNanos = System.nanoTime() - start;
+    }
+
+    // Writes one phase of a prioritized project, on the workers when there are any, and waits until it is on disk
+    private static void writePhase(CreateSnapCodeProjectCheerpJ writer, Options options, MaterializeMetrics metrics,
+                                   Consumer<ProjectEntryHandler> phase) throws InterruptedException {
+        if (options.workers <= 0) {
+            phase.accept(writer);
             return;
         }
-        String filesArray = json.substring(arrayStart, arrayEnd + 1);
-
-        processFilesArray(filesArray, "/files");
-    }
-
-    // Recursively process a JSON array of files/folders
-    private static void processFilesArray(String filesArray, String parentPath) {
-        int idx = 0;
-        while (idx < filesArray.length()) {
-            int objStart = filesArray.indexOf('{', idx);
-            if (objStart < 0) break;
-            int objEnd = findMatchingBrace(filesArray, objStart);
-            if (objEnd < 0) break;
-            String entry = filesArray.substring(objStart, objEnd + 1);
-
-            String path = extractJsonValue(entry, "path");
-            String content = extractJsonValue(entry, "content");
-            String isBinaryStr = extractJsonValue(entry, "isBinary");
-            String isDirectoryStr = extractJsonValue(entry, "isDirectory");
-            boolean isBinary = isBinaryStr != null && isBinaryStr.equalsIgnoreCase("true");
-            boolean isDirectory = isDirectoryStr != null && isDirectoryStr.equalsIgnoreCase("true");
-
-            if (path == null || path.isEmpty()) {
-                System.err.println("Skipping file with missing path.");
-                idx = objEnd + 1;
-                continue;
-            }
-            String fullPath = parentPath + (path.startsWith("/") ? path : "/" + path);
-
-            if (isDirectory) {
-                File dir = new File(fullPath);
-                if (!dir.exists()) dir.mkdirs();
-                // Recursively process children
-                String childrenArray = extractJsonArray(entry, "children");
-                if (childrenArray != null && childrenArray.trim().length() > 2) { // not empty array
-                    processFilesArray(childrenArray, fullPath);
+        MaterializePipeline pipeline = new MaterializePipeline(writer, options.workers, options.queueCapacity, metrics);
+        try {
+            phase.accept(pipeline);
+        } finally {
+            pipeline.finish();
+        }
+    }
+
+    static String batchSummary(List<Long> latencies) {
+        long total = 0, min = Long.MAX_VALUE, max = 0;
+        for (long nanos : latencies) {
+            total += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+        if (latencies.isEmpty()) return "Materialized 0 projects";
+        return String.format(Locale.ROOT, "Materialized %d projects in %d ms: min %d ms, avg %d ms, max %d ms per project",
+                latencies.size(), total / 1_000_000, min / 1_000_000, total / latencies.size() / 1_000_000, max / 1_000_000);
+    }
+
+    /**
+     * Deletes files that an earlier run wrote but that are no longer part of the project, and
+     * saves its manifest. Only the scoped project is cleaned up; without a scope nothing is.
+     * Only call this after the whole document was read successfully.
+     */
+    void finish() {
+        long start = System.nanoTime();
+        finishChunked();
+        MaterializeManifest manifest = projectDir == null ? null : manifests.get(projectDir);
+        if (manifest != null) {
+            for (String path : manifest.removedPaths()) {
+                if (sink.delete(path)) {
+                    metrics.removed++;
+                    if (logLevel != LogLevel.QUIET) System.out.println("Removed file: " + displayPath(path));
                 }
-            } else {
-                if (content == null) {
-                    System.err.println("Warning: File '" + fullPath + "' has null content. Writing as empty file.");
-                    content = "";
+            }
+            try {
+                manifest.save();
+            } catch (IOException ex) {
+                System.err.println("Warning: could not save materialize manifest: " + ex.getMessage());
+            }
+            saveBaseline(projectDir, manifest);
+        }
+        try {
+            blobs.save();
+        } catch (IOException e) {
+            System.err.println("Warning: could not save blob index: " + e.getMessage());
+        }
+        metrics.writeNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Records what the project looks like on disk right after opening, as the baseline the
+     * exporter's delta mode compares against. Content hashes are left unknown here (the
+     * manifest only has source hashes); the exporter fills them in on the first save.
+     */
+    private void saveBaseline(String projectDir, MaterializeManifest manifest) {
+        MaterializeManifest baseline = MaterializeManifest.empty(metadataFile(projectDir, "baseline.tsv"));
+        for (Map.Entry<String, MaterializeManifest.Entry> e : manifest.entries().entrySet()) {
+            MaterializeManifest.Entry entry = e.getValue();
+            baseline.record(e.getKey(), new MaterializeManifest.Entry(MaterializeManifest.UNKNOWN_HASH, entry.size, entry.mtime));
+        }
+        try {
+            baseline.save();
+            // A baseline left pending by an unfinished save no longer applies
+            metadataFile(projectDir, "baseline.pending.tsv").delete();
+        } catch (IOException e) {
+            System.err.println("Warning: could not save export baseline: " + e.getMessage());
+        }
+    }
+
+    // Returns a writer for the next project of a batch: same output and blobs, its own manifests, directory cache and metrics
+    CreateSnapCodeProjectCheerpJ forProject(MaterializeMetrics projectMetrics) {
+        return new CreateSnapCodeProjectCheerpJ(sink, logLevel, projectMetrics, incremental, new HashMap<>(), blobs,
+                ConcurrentHashMap.newKeySet());
+    }
+
+    // Returns a writer for a pipeline worker: same output, manifests, blobs and directories, its own buffers and metrics
+    CreateSnapCodeProjectCheerpJ forWorker(MaterializeMetrics workerMetrics) {
+        CreateSnapCodeProjectCheerpJ worker = new CreateSnapCodeProjectCheerpJ(sink, logLevel, workerMetrics, incremental,
+                manifests, blobs, knownDirectories);
+        worker.projectDir = projectDir;
+        return worker;
+    }
+
+    /**
+     * Limits the manifests and the removal pass to one project directory. Entries outside it
+     * are written without a manifest and never cause another project's files to be removed.
+     */
+    void scope(String projectId) {
+        projectDir = projectId == null || projectId.isEmpty() ? null : projectId;
+    }
+
+    private static LogLevel parseLogLevel(String name) {
+        for (LogLevel level : LogLevel.values()) {
+            if (level.name().equalsIgnoreCase(name)) return level;
+        }
+        throw new IllegalArgumentException("expected quiet, info or debug");
+    }
+
+    // One worker per core on multi-core JVMs, capped; single-core runtimes such as CheerpJ write inline.
+    // Only the single-core case is measured: there, workers cost up to a fifth more time than writing inline.
+    static int defaultWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return cores > 1 ? Math.min(cores, MAX_DEFAULT_WORKERS) : 0;
+    }
+
+    /**
+     * Writes a readiness marker (ready-core, ready-all) to the project's metadata directory.
+     * It holds the run id, so a loader polling for it can tell it from one a previous open left.
+     */
+    void writeMarker(String projectDir, String name, String runId) {
+        File marker = metadataFile(projectDir, name);
+        try {
+            marker.getParentFile().mkdirs();
+            Files.write(marker.toPath(), runId.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Warning: could not write " + name + " marker: " + e.getMessage());
+        }
+    }
+
+    /** True if the output persists on the local file system, so that metadata files can be kept for it. */
+    boolean isLocal() {
+        return sink.isLocal();
+    }
+
+    // Returns a file in the materializer's metadata directory for the given project
+    File metadataFile(String projectDir, String name) {
+        return new File(outputRoot + "/.materialize/" + projectDir + "/" + name);
+    }
+
+    @Override
+    public void directory(String path) {
+        long start = System.nanoTime();
+        ensureDirectory(path);
+        metrics.directories++;
+        metrics.writeNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        long start = System.nanoTime();
+        long otherNanos = metrics.hashNanos + metrics.decodeNanos;
+        writeFile(path, encoding, src, contentStart, contentEnd);
+        metrics.writeNanos += System.nanoTime() - start - (metrics.hashNanos + metrics.decodeNanos - otherNanos);
+    }
+
+    /**
+     * Writes a file whose content arrives as a stream, such as a zip entry, copying it through
+     * the chunk buffer. sourceHash is the CRC/size key from streamHash when the reader knows it
+     * up front, which lets an unchanged file be skipped without reading it; the key is computed
+     * while copying otherwise.
+     */
+    void file(String path, InputStream in, String sourceHash) {
+        long start = System.nanoTime();
+        long otherNanos = metrics.hashNanos + metrics.decodeNanos;
+        writeStream(path, in, sourceHash);
+        metrics.writeNanos += System.nanoTime() - start - (metrics.hashNanos + metrics.decodeNanos - otherNanos);
+    }
+
+    @Override
+    public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        long start = System.nanoTime();
+        long otherNanos = metrics.hashNanos + metrics.decodeNanos;
+        writeChunk(path, chunk, encoding, src, contentStart, contentEnd);
+        metrics.writeNanos += System.nanoTime() - start - (metrics.hashNanos + metrics.decodeNanos - otherNanos);
+    }
+
+    /**
+     * Drops a chunked file whose last piece never arrived, so that no truncated file is left
+     * behind. Called by finish, and by the pipeline for its inline writer.
+     */
+    void finishChunked() {
+        if (chunked != null) abortChunked("is missing pieces " + chunked.next + " to " + (chunked.first.count - 1));
+    }
+
+    // Manifest key for streamed content
+    static String streamHash(long crc32, long size) {
+        return "crc32:" + Long.toHexString(crc32) + ":" + size;
+    }
+
+    private void writeStream(String path, InputStream in, String sourceHash) {
+        String fullPath = outputRoot + path;
+        File outFile = new File(fullPath);
+        MaterializeManifest manifest = manifestFor(path);
+        if (manifest != null && sourceHash != null && manifest.isUnchanged(path, sourceHash, outFile)) {
+            metrics.unchanged++;
+            if (logLevel != LogLevel.QUIET) System.out.println("Unchanged file: " + displayPath(path));
+            return;
+        }
+
+        ensureDirectory(parentOf(path));
+        try {
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try (SeekableByteChannel out = sink.create(path)) {
+                ByteBuffer chunk = ByteBuffer.wrap(binaryChunk);
+                while (true) {
+                    long decodeStart = System.nanoTime();
+                    int n = in.read(binaryChunk);
+                    metrics.decodeNanos += System.nanoTime() - decodeStart;
+                    if (n < 0) break;
+                    crc.update(binaryChunk, 0, n);
+                    size += n;
+                    chunk.limit(n).position(0);
+                    while (chunk.hasRemaining()) out.write(chunk);
                 }
-                File outFile = new File(fullPath);
-                File parentDir = outFile.getParentFile();
-                if (parentDir != null && !parentDir.exists()) parentDir.mkdirs();
-
-                try {
-                    if (isBinary) {
-                        try (OutputStream out = new FileOutputStream(outFile)) {
-                            byte[] bytes;
-                            try {
-                                bytes = Base64.getDecoder().decode(content);
-                            } catch (IllegalArgumentException e) {
-                                System.err.println("Warning: File '" + fullPath + "' has invalid base64 content. Writing empty file.");
-                                bytes = new byte[0];
-                            }
-                            out.write(bytes);
-                        }
-                     
+            }
+            metrics.bytesWritten += size;
+            if (manifest != null) manifest.recordWritten(path, streamHash(crc.getValue(), size), outFile);
+            metrics.files++;
+            if (logLevel != LogLevel.QUIET) System.out.println("Wrote file: " + displayPath(path));
+        } catch (Exception ex) {
+            System.err.println("Error writing file '" + fullPath + "': " + ex.getMessage());
+            ex.printStackTrace();
+            if (manifest != null) manifest.keepPrevious(path);
+        }
+    }
+
+    // Appends one piece to the chunked file, starting it at piece 0 and checking it after the last
+    private void writeChunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        if (chunk.index == 0) {
+            if (chunked != null) finishChunked();
+            if (!startChunked(path, chunk)) return;
+        } else if (chunked == null || !chunked.path.equals(path) || chunk.index != chunked.next) {
+            // Either the file was skipped as unchanged, or a piece is missing or out of order
+            if (chunked != null && chunked.path.equals(path)) abortChunked("has piece " + chunk.index + " where " + chunked.next + " was expected");
+            return;
+        }
+        ChunkedFile file = chunked;
+        file.next++;
+        if (contentStart >= 0) {
+            try {
+                appendChunk(file, encoding, src, contentStart, contentEnd);
+            } catch (IOException e) {
+                abortChunked("could not be written: " + e.getMessage());
+                return;
+            }
+        }
+        if (file.next == file.first.count) completeChunked();
+    }
+
+    // Opens the output for a chunked file, or returns false if it is unchanged or cannot be written
+    private boolean startChunked(String path, Chunk first) {
+        File outFile = new File(outputRoot + path);
+        if (first.count <= 0) {
+            System.err.println("Warning: File '" + outputRoot + path + "' is chunked without a chunkCount. Skipping it.");
+            return false;
+        }
+        // Without reading every piece only a declared SHA-1 can tell that the file is unchanged
+        MaterializeManifest manifest = manifestFor(path);
+        if (manifest != null && first.sha1 != null && manifest.isUnchanged(path, "sha1:" + first.sha1, outFile)) {
+            metrics.unchanged++;
+            if (logLevel != LogLevel.QUIET) System.out.println("Unchanged file: " + displayPath(path));
+            return false;
+        }
+        try {
+            chunked = new ChunkedFile(path, first, MessageDigest.getInstance("SHA-1"));
+            ensureDirectory(parentOf(path));
+            chunked.out = sink.create(path);
+            return true;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            abortChunked("could not be opened: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Decodes one piece into the open file through the chunk buffer, hashing what is written
+    private void appendChunk(ChunkedFile file, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) throws IOException {
+        ByteBuffer content = src.duplicate();
+        content.limit(contentEnd).position(contentStart);
+        WritableByteChannel out = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer bytes) throws IOException {
+                ByteBuffer written = bytes.duplicate();
+                int n = file.out.write(bytes);
+                written.limit(written.position() + n);
+                file.sha1.update(written);
+                file.size += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return file.out.isOpen();
+            }
+
+            @Override
+            public void close() { }
+        };
+        if (encoding == Encoding.JSON_BASE64) {
+            if (!writeBase64(content, out)) throw new IOException("invalid base64 content in piece " + (file.next - 1));
+            return;
+        }
+        ByteBuffer bytes = content;
+        if (encoding == Encoding.JSON_TEXT && indexOf(src, contentStart, contentEnd, (byte) '\\') >= 0) {
+            long decodeStart = System.nanoTime();
+            bytes = scratch(contentEnd - contentStart);
+            JsonUnescape.unescapeJsonBytes(src, contentStart, contentEnd, bytes);
+            bytes.flip();
+            metrics.decodeNanos += System.nanoTime() - decodeStart;
+        }
+        metrics.bytesWritten += bytes.remaining();
+        while (bytes.hasRemaining()) out.write(bytes);
+    }
+
+    // Closes the chunked file after its last piece and checks it against the declared size and SHA-1
+    private void completeChunked() {
+        ChunkedFile file = chunked;
+        try {
+            file.out.close();
+        } catch (IOException e) {
+            abortChunked("could not be closed: " + e.getMessage());
+            return;
+        }
+        String sha1 = hex(file.sha1.digest());
+        if (file.first.size >= 0 && file.first.size != file.size) {
+            abortChunked("has " + file.size + " bytes instead of " + file.first.size);
+            return;
+        }
+        if (file.first.sha1 != null && !file.first.sha1.equalsIgnoreCase(sha1)) {
+            abortChunked("has SHA-1 " + sha1 + " instead of " + file.first.sha1);
+            return;
+        }
+        chunked = null;
+        MaterializeManifest manifest = manifestFor(file.path);
+        try {
+            if (manifest != null) manifest.recordWritten(file.path, "sha1:" + sha1, new File(outputRoot + file.path));
+        } catch (IOException e) {
+            System.err.println("Warning: could not record '" + file.path + "' in the manifest: " + e.getMessage());
+        }
+        metrics.files++;
+        if (logLevel != LogLevel.QUIET) {
+            System.out.println("Wrote file: " + displayPath(file.path) + " (" + file.first.count + " pieces)");
+        }
+    }
+
+    // Reports a chunked file that cannot be completed and deletes what was written of it
+    private void abortChunked(String reason) {
+        ChunkedFile file = chunked;
+        chunked = null;
+        System.err.println("Error: chunked file '" + outputRoot + file.path + "' " + reason + ". Removing it.");
+        try {
+            if (file.out != null) file.out.close();
+        } catch (IOException e) {
+            // The file is deleted either way
+        }
+        sink.delete(file.path);
+    }
+
+    private void writeFile(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        String fullPath = outputRoot + path;
+        if (contentStart < 0) {
+            System.err.println("Warning: File '" + fullPath + "' has null content. Writing as empty file.");
+            contentStart = contentEnd = 0;
+        }
+        File outFile = new File(fullPath);
+
+        // Skip files whose content and on-disk state match the last run
+        MaterializeManifest manifest = manifestFor(path);
+        String hash = null;
+        if (manifest != null) {
+            long hashStart = System.nanoTime();
+            hash = contentHash(src, contentStart, contentEnd, encoding);
+            metrics.hashNanos += System.nanoTime() - hashStart;
+            if (manifest.isUnchanged(path, hash, outFile)) {
+                metrics.unchanged++;
+                if (logLevel != LogLevel.QUIET) System.out.println("Unchanged file: " + displayPath(path));
+                return;
+            }
+        }
+
+        // Copy content that another file already holds instead of decoding it again; raw content needs no decoding
+        boolean shareable = hash != null && encoding != Encoding.RAW && contentEnd - contentStart >= MIN_BLOB_SIZE;
+        if (shareable && incremental) {
+            String blobPath = blobs.find(hash);
+            if (blobPath != null && copyBlob(path, blobPath, outFile, manifest, hash)) return;
+        }
+
+        ensureDirectory(parentOf(path));
+
+        ByteBuffer content = src.duplicate();
+        content.limit(contentEnd).position(contentStart);
+        try {
+            try (SeekableByteChannel out = sink.create(path)) {
+                if (encoding == Encoding.JSON_BASE64) {
+                    if (!writeBase64(content, out)) {
+                        System.err.println("Warning: File '" + fullPath + "' has invalid base64 content. Writing empty file.");
+                        out.truncate(0);
+                    }
+                }
+                else {
+                    // Unescape content before writing for text files, staying in UTF-8; raw content is written as is
+                    ByteBuffer bytes = content;
+                    if (encoding == Encoding.JSON_TEXT && indexOf(src, contentStart, contentEnd, (byte) '\\') >= 0) {
+                        long decodeStart = System.nanoTime();
+                        bytes = scratch(contentEnd - contentStart);
+                        JsonUnescape.unescapeJsonBytes(src, contentStart, contentEnd, bytes);
+                        bytes.flip();
+                        metrics.decodeNanos += System.nanoTime() - decodeStart;
                     }
-                    else {
-                        // Unescape content before writing for text files
-                        String fixedContent = JsonUnescape.unescapeJsonString(content);
-                         System.out.println("WRITING FILE: " + outFile.getAbsolutePath());
-                            System.out.println("--- FILE CONTENT START ---");
-                            System.out.println(fixedContent);
-                            System.out.println("--- FILE CONTENT END ---");
-                        try (Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8")) {
-                            out.write(fixedContent);
-                        }
+                    if (logLevel == LogLevel.DEBUG && encoding == Encoding.JSON_TEXT) {
+                        System.out.println("WRITING FILE: " + displayPath(path));
+                        System.out.println("--- FILE CONTENT START ---");
+                        System.out.println(StandardCharsets.UTF_8.decode(bytes.duplicate()));
+                        System.out.println("--- FILE CONTENT END ---");
                     }
-                    System.out.println("Wrote file: " + outFile.getAbsolutePath());
-                } catch (Exception ex) {
-                    System.err.println("Error writing file '" + fullPath + "': " + ex.getMessage());
-                    ex.printStackTrace();
+                    metrics.bytesWritten += bytes.remaining();
+                    while (bytes.hasRemaining()) out.write(bytes);
                 }
             }
-            idx = objEnd + 1;
-        }
-    }
-
-    private static String readAll(File file) throws IOException {
-        try (BufferedReader r = new BufferedReader(new FileReader(file))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = r.readLine()) != null) sb.append(line);
-            return sb.toString();
-        }
-    }
-
-    // Extracts a string value for a given key from a JSON object string
-    private static String extractJsonValue(String json, String key) {
-        int idx = json.indexOf("\"" + key + "\"");
-        if (idx < 0) return null;
-        int colon = json.indexOf(':', idx);
-        if (colon < 0) return null;
-        int valueStart = colon + 1;
-        // Skip whitespace
-        while (valueStart < json.length() && Character.isWhitespace(json.charAt(valueStart))) valueStart++;
-        if (valueStart >= json.length()) return null;
-        if (json.charAt(valueStart) == '"') {
-            int start = valueStart + 1;
-            int end = valueStart + 1;
-            while (end < json.length()) {
-                if (json.charAt(end) == '"' && json.charAt(end - 1) != '\\') break;
-                end++;
-            }
-            if (end >= json.length()) return null;
-            return json.substring(start, end);
-        } else if (json.charAt(valueStart) == 't' || json.charAt(valueStart) == 'f') {
-            // true/false
-            int end = valueStart;
-            while (end < json.length() && Character.isLetter(json.charAt(end))) end++;
-            return json.substring(valueStart, end);
-        } else if (json.charAt(valueStart) == '[') {
-            // Array, not handled here
-            return null;
-        } else {
-            // null or number
-            int end = valueStart;
-            while (end < json.length() && !Character.isWhitespace(json.charAt(end)) && json.charAt(end) != ',' && json.charAt(end) != '}') end++;
-            return json.substring(valueStart, end);
+            if (manifest != null) manifest.recordWritten(path, hash, outFile);
+            if (shareable) blobs.add(hash, path, outFile);
+            metrics.files++;
+            if (logLevel != LogLevel.QUIET) System.out.println("Wrote file: " + displayPath(path));
+        } catch (Exception ex) {
+            System.err.println("Error writing file '" + fullPath + "': " + ex.getMessage());
+            ex.printStackTrace();
+            if (manifest != null) manifest.keepPrevious(path);
         }
     }
 
-    // Extracts a JSON array string for a given key from a JSON object string
-    private static String extractJsonArray(String json, String key) {
-        int idx = json.indexOf("\"" + key + "\"");
-        if (idx < 0) return null;
-        int colon = json.indexOf(':', idx);
-        if (colon < 0) return null;
-        int arrayStart = json.indexOf('[', colon);
-        if (arrayStart < 0) return null;
-        int arrayEnd = findMatchingBracket(json, arrayStart);
-        if (arrayEnd < 0) return null;
-        return json.substring(arrayStart, arrayEnd + 1);
+    /**
+     * Copies the blob at blobPath to outFile. Returns false if that failed and the content must
+     * be decoded instead. Another worker can rewrite the blob after find(), so the copy only
+     * counts if it has the blob's recorded size and the blob is still intact afterwards.
+     */
+    private boolean copyBlob(String path, String blobPath, File outFile, MaterializeManifest manifest, String hash) {
+        try {
+            if (blobPath.equals(path)) {
+                // The file on disk already is the blob, only its manifest entry was missing
+                manifest.recordWritten(path, hash, outFile);
+                metrics.unchanged++;
+                if (logLevel != LogLevel.QUIET) System.out.println("Unchanged file: " + displayPath(path));
+                return true;
+            }
+            long expected = blobs.size(hash);
+            ensureDirectory(parentOf(path));
+            long copied = 0;
+            try (FileChannel in = FileChannel.open(new File(outputRoot + blobPath).toPath(), StandardOpenOption.READ);
+                 SeekableByteChannel out = sink.create(path)) {
+                for (long n; (n = in.transferTo(copied, Long.MAX_VALUE, out)) > 0; ) copied += n;
+            }
+            if (copied != expected || !blobPath.equals(blobs.find(hash))) {
+                if (logLevel != LogLevel.QUIET) System.out.println("Blob '" + blobPath + "' changed while copying; decoding '" + path + "' instead");
+                return false;
+            }
+            metrics.bytesWritten += copied;
+            manifest.recordWritten(path, hash, outFile);
+            metrics.files++;
+            metrics.copied++;
+            if (logLevel != LogLevel.QUIET) System.out.println("Copied file: " + displayPath(path) + " from " + blobPath);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Warning: could not copy '" + blobPath + "' to '" + path + "': " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Creates the directory at path unless this project already created or found it; each hit saves an exists() call through the mount
+    private void ensureDirectory(String path) {
+        if (knownDirectories.contains(path)) {
+            metrics.fsCallsSaved++;
+            return;
+        }
+        if (!sink.directory(path)) return;
+        // The sink made the parents too, so they need no check either
+        for (String dir = path; dir != null && knownDirectories.add(dir); dir = dir.isEmpty() ? null : parentOf(dir)) { }
     }
 
-    // Finds the matching closing bracket for a JSON array
-    private static int findMatchingBracket(String json, int openIdx) {
-        int depth = 0;
-        for (int i = openIdx; i < json.length(); i++) {
-            if (json.charAt(i) == '[') depth++;
-            else if (json.charAt(i) == ']') {
-                depth--;
-                if (depth == 0) return i;
+    // Returns the directory part of a project path; "" for the root
+    private static String parentOf(String path) {
+        return path.substring(0, Math.max(0, path.lastIndexOf('/')));
+    }
+
+    // Names a project path in messages: the absolute file for a local sink, the sink's name for it otherwise
+    private String displayPath(String path) {
+        return sink.isLocal() ? new File(outputRoot + path).getAbsolutePath() : outputRoot + path;
+    }
+
+    // Returns the writer's cleared direct buffer when size fits it, growing it up to MAX_SCRATCH_SIZE; larger content gets its own buffer
+    private ByteBuffer scratch(int size) {
+        if (size > MAX_SCRATCH_SIZE) return ByteBuffer.allocate(size);
+        if (scratch == null || scratch.capacity() < size) {
+            scratch = ByteBuffer.allocateDirect(Math.min(MAX_SCRATCH_SIZE, Math.max(BINARY_CHUNK_SIZE, Integer.highestOneBit(size - 1) << 1)));
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    // Returns the manifest of the project directory (first path segment) that path belongs to; null outside the scoped project
+    private MaterializeManifest manifestFor(String path) {
+        if (!sink.isLocal()) return null;
+        int slash = path.indexOf('/', 1);
+        if (slash < 0) return null;
+        String projectDir = path.substring(1, slash);
+        String scope = this.projectDir;
+        if (scope != null && !scope.equals(projectDir)) return null;
+        synchronized (manifests) {
+            MaterializeManifest manifest = manifests.get(projectDir);
+            if (manifest == null) {
+                File file = metadataFile(projectDir, "manifest.tsv");
+                manifest = incremental ? MaterializeManifest.load(file) : MaterializeManifest.empty(file);
+                manifests.put(projectDir, manifest);
             }
+            return manifest;
         }
-        return -1;
     }
 
-    // Finds the matching closing brace for a JSON object
-    private static int findMatchingBrace(String json, int openIdx) {
-        int depth = 0;
-        for (int i = openIdx; i < json.length(); i++) {
-            if (json.charAt(i) == '{') depth++;
-            else if (json.charAt(i) == '}') {
-                depth--;
-                if (depth == 0) return i;
+    // Hashes the still-encoded source span, so unchanged files are detected without decoding them
+    private String contentHash(ByteBuffer src, int start, int end, Encoding encoding) {
+        ByteBuffer span = src.duplicate();
+        span.limit(end).position(start);
+        digest.update((byte) (encoding == Encoding.JSON_BASE64 ? 'b' : encoding == Encoding.JSON_TEXT ? 't' : 'r'));
+        digest.update(span);
+        return hex(digest.digest());
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // Decodes Base64 from the buffer into the channel in fixed-size chunks, so peak memory
+    // does not depend on the size of the asset. Returns false if the content is not valid Base64.
+    private boolean writeBase64(ByteBuffer base64, WritableByteChannel out) throws IOException {
+        if (indexOf(base64, base64.position(), base64.limit(), (byte) '\\') >= 0) {
+            // Escaped characters (e.g. "\/") are not Base64; unescape the span first
+            ByteBuffer unescaped = scratch(base64.remaining());
+            JsonUnescape.unescapeJsonBytes(base64, base64.position(), base64.limit(), unescaped);
+            unescaped.flip();
+            base64 = unescaped;
+        }
+        InputStream in = Base64.getDecoder().wrap(new ByteBufferInputStream(base64));
+        ByteBuffer chunk = ByteBuffer.wrap(binaryChunk);
+        while (true) {
+            int n;
+            long decodeStart = System.nanoTime();
+            try {
+                n = in.read(binaryChunk);
+            } catch (IOException e) {
+                // The source buffer cannot fail, so this is always a decoding error
+                return false;
+            } finally {
+                metrics.decodeNanos += System.nanoTime() - decodeStart;
             }
+            if (n < 0) return true;
+            chunk.limit(n).position(0);
+            metrics.bytesWritten += n;
+            while (chunk.hasRemaining()) out.write(chunk);
         }
-        return -1;
     }
-}
 
-// Place JsonUnescape as a separate class (can be in the same file)
-class JsonUnescape {
-    /**
-     * Manually unescape a JSON string literal to plain text.
-     * Handles \n, \t, \r, \\, \", and basic \\uXXXX unicode escapes.
-     */
-    public static String unescapeJsonString(String s) {
-        StringBuilder sb = new StringBuilder();
-        int len = s.length();
-        for (int i = 0; i < len; ) {
-            char c = s.charAt(i);
-            if (c == '\\' && i + 1 < len) {
-                char next = s.charAt(i + 1);
-                switch (next) {
-                    case 'n': sb.append('\n'); i += 2; break;
-                    case 't': sb.append('\t'); i += 2; break;
-                    case 'r': sb.append('\r'); i += 2; break;
-                    case 'b': sb.append('\b'); i += 2; break;
-                    case 'f': sb.append('\f'); i += 2; break;
-                    case '\\': sb.append('\\'); i += 2; break;
-                    case '\"': sb.append('\"'); i += 2; break;
-                    case 'u':
-                        if (i + 6 <= len) {
-                            String hex = s.substring(i + 2, i + 6);
-                            try {
-                                int code = Integer.parseInt(hex, 16);
-                                sb.append((char) code);
-                                i += 6;
-                            } catch (NumberFormatException e) {
-                                sb.append("\\u").append(hex);
-                                i += 6;
-                            }
-                        } else {
-                            sb.append("\\u");
-                            i += 2;
-                        }
-                        break;
-                    default: // unknown escape, copy literally
-                        sb.append(c).append(next);
-                        i += 2;
-                        break;
+    // Reads the whole file as raw bytes, memory-mapping it where the runtime allows
+    static ByteBuffer readAll(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            try {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException | UnsupportedOperationException e) {
+                // Not every file system can be mapped; fall back to a single read
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    // Decodes a document that arrived as one JSON string literal in a single pass. Unescaping
+    // never grows the content, so a writable heap buffer is decoded in place without a copy.
+    private static ByteBuffer unquote(ByteBuffer quoted) {
+        ByteBuffer inner = quoted.hasArray() && !quoted.isReadOnly() ? quoted.duplicate() : ByteBuffer.allocate(quoted.limit());
+        inner.clear();
+        JsonUnescape.unescapeJsonBytes(quoted, 1, quoted.limit() - 1, inner);
+        inner.flip();
+        return inner;
+    }
+
+    private static boolean isGzip(ByteBuffer buf) {
+        return buf.limit() >= 18 && buf.get(0) == (byte) 0x1f && buf.get(1) == (byte) 0x8b;
+    }
+
+    // Inflates a gzip buffer into a single array presized from the trailer's ISIZE (the length
+    // mod 2^32), so the uncompressed document is normally never copied or turned into a String.
+    // ISIZE is unchecked until the end, so a corrupt trailer can only presize a bounded multiple
+    // of the compressed length.
+    private static ByteBuffer gunzip(ByteBuffer gz) throws IOException {
+        int limit = gz.limit();
+        long isize = (gz.get(limit - 4) & 0xFFL) | (gz.get(limit - 3) & 0xFFL) << 8
+                | (gz.get(limit - 2) & 0xFFL) << 16 | (gz.get(limit - 1) & 0xFFL) << 24;
+        long presize = Math.min(isize, (long) limit * MAX_GZIP_PRESIZE_RATIO);
+        byte[] out = new byte[(int) Math.min(MAX_ARRAY_SIZE, Math.max(presize, limit))];
+        int length = 0;
+        ByteBuffer src = gz.duplicate();
+        src.position(0);
+        try (InputStream in = new GZIPInputStream(new ByteBufferInputStream(src), BINARY_CHUNK_SIZE)) {
+            while (true) {
+                int n = in.read(out, length, out.length - length);
+                if (n < 0) break;
+                length += n;
+                if (length == out.length) {
+                    // ISIZE is only a hint: capped above, wrong for inputs over 4 GB or with several members
+                    int next = in.read();
+                    if (next < 0) break;
+                    if (out.length == MAX_ARRAY_SIZE) throw new IOException("Uncompressed document is larger than " + MAX_ARRAY_SIZE + " bytes");
+                    out = Arrays.copyOf(out, (int) Math.min(MAX_ARRAY_SIZE, out.length * 2L));
+                    out[length++] = (byte) next;
                 }
-            } else {
-                sb.append(c);
-                i++;
             }
         }
-        return sb.toString();
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    private static int indexOf(ByteBuffer buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    // Reads the remaining bytes of a buffer without copying them out first
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
     }
-}
\ No newline at end of file
+}
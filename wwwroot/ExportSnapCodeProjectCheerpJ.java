@@ -0,0 +1,374 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Counterpart of CreateSnapCodeProjectCheerpJ for saving: walks /files/&lt;projectId&gt;
+ * (skipping bin/) and streams the save payload for /api/ProjectsApi/save into a single file,
+ * so the page can upload it as one Blob instead of reading and encoding every file in JS.
+ * <p>
+ * With --delta only what changed since the baseline is exported, as a patch document for
+ * /api/ProjectsApi/patch. The baseline is what the materializer wrote on open; every export
+ * leaves the tree it saw in baseline.pending.tsv, and --commit makes that the baseline once
+ * the server has accepted the save. A failed save therefore never moves the baseline.
+ * <p>
+ * Java cannot write to the read-only /str mount, so all of this goes to the materializer's
+ * metadata directory, /files/.materialize/&lt;projectId&gt;/, which is outside the project and
+ * never saved itself. On failure no export file is left behind, and once the page has
+ * uploaded it, --commit or --discard (for a save that is not committed) removes it.
+ * <p>
+ * bin/ is not saved, but with --toolchain=CLASSPATH a fresh bin/ is kept in the class cache
+ * there, for the materializer to restore when the project is next opened unchanged.
+ * <p>
+ * Usage: ExportSnapCodeProjectCheerpJ &lt;projectId&gt; [projectName] [userId] [--delta [--base-version=N]] [--commit | --discard] [--toolchain=CLASSPATH]
+ */
+public class ExportSnapCodeProjectCheerpJ {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String DIRECTORY_HASH = "dir";
+    /** Largest array the JVM reliably allocates. */
+    private static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+    private final File projectDir;
+    private final String projectId;
+    private final MaterializeManifest baseline;
+    private final MessageDigest digest;
+    private byte[] buffer = new byte[64 * 1024];
+    private String lastHash;
+    int files;
+    int binaryFiles;
+    long bytesRead;
+
+    /** baseline holds the last saved tree; the entries of this export are recorded into it. */
+    ExportSnapCodeProjectCheerpJ(String outputRoot, String projectId, MaterializeManifest baseline) {
+        this.projectDir = new File(outputRoot, projectId);
+        this.projectId = projectId;
+        this.baseline = baseline;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        boolean delta = false, commit = false, discard = false;
+        String baseVersion = null, toolchain = null;
+        for (String arg : args) {
+            if (arg.equals("--delta")) delta = true;
+            else if (arg.equals("--commit")) commit = true;
+            else if (arg.equals("--discard")) discard = true;
+            else if (arg.startsWith("--base-version=")) baseVersion = arg.substring(15);
+            else if (arg.startsWith("--toolchain=")) toolchain = arg.substring(12);
+            else positional.add(arg);
+        }
+        if (positional.isEmpty() || positional.get(0).isEmpty()) {
+            System.err.println("Usage: ExportSnapCodeProjectCheerpJ <projectId> [projectName] [userId] [--delta [--base-version=N]] [--commit | --discard] [--toolchain=CLASSPATH]");
+            return;
+        }
+        String projectId = positional.get(0);
+        String name = positional.size() > 1 ? positional.get(1) : "Project";
+        String userId = positional.size() > 2 && !positional.get(2).trim().isEmpty() ? positional.get(2) : null;
+
+        File metadataDir = new File("/files/.materialize/" + projectId);
+        File baselineFile = new File(metadataDir, "baseline.tsv");
+        File pendingFile = new File(metadataDir, "baseline.pending.tsv");
+        if (commit || discard) {
+            // The payloads are only kept until the page has uploaded them
+            new File(metadataDir, "export.json").delete();
+            new File(metadataDir, "patch.json").delete();
+        }
+        if (discard) {
+            pendingFile.delete();
+            return;
+        }
+        if (commit) {
+            try {
+                Files.move(pendingFile.toPath(), baselineFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Warning: no pending export baseline to commit for '" + projectId + "': " + e.getMessage());
+            }
+            return;
+        }
+        if (toolchain != null) collectClasses(projectId, metadataDir, toolchain);
+        File exportFile = new File(metadataDir, delta ? "patch.json" : "export.json");
+        File tempFile = new File(exportFile.getPath() + ".tmp");
+        exportFile.delete();
+        pendingFile.delete();
+        if (delta && !baselineFile.exists()) {
+            System.err.println("No export baseline for '" + projectId + "'; a full export is needed.");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ExportSnapCodeProjectCheerpJ exporter = new ExportSnapCodeProjectCheerpJ("/files", projectId,
+                    MaterializeManifest.load(baselineFile));
+            metadataDir.mkdirs();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024)) {
+                if (delta) exporter.exportPatch(out, userId, baseVersion);
+                else exporter.export(out, name, userId);
+            }
+            Files.move(tempFile.toPath(), exportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            exporter.baseline.save(pendingFile);
+            System.out.println("Exported " + exporter.files + " files (" + exporter.binaryFiles + " binary, "
+                    + exporter.bytesRead + " bytes) to " + exportFile.length() + " bytes in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            tempFile.delete();
+            exportFile.delete();
+            System.err.println("Error exporting project '" + projectId + "': " + e.getMessage());
+        }
+    }
+
+    // Keeps the classes of the last build in the class cache, if they are current
+    private static void collectClasses(String projectId, File metadataDir, String toolchain) {
+        long start = System.nanoTime();
+        try {
+            int cached = new MaterializeClassCache(new File("/files", projectId), new File(metadataDir, "classes"), toolchain).collect();
+            if (cached < 0) System.out.println("Not caching compiled classes: bin/ is older than the sources");
+            else if (cached > 0) System.out.println("Cached " + cached + " compiled classes in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Warning: could not cache compiled classes for '" + projectId + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the project as the JSON the save endpoint expects: Id, Name, UserId and a flat
+     * Files array with /&lt;projectId&gt;/... paths, directories included.
+     */
+    void export(OutputStream out, String name, String userId) throws IOException {
+        writeHeader(out, userId);
+        write(out, ",\"Name\":");
+        writeString(out, name);
+        write(out, ",\"Files\":[");
+        boolean first = true;
+        for (String path : walk()) {
+            if (!first) out.write(',');
+            first = false;
+            writeEntry(out, path, true);
+        }
+        write(out, "]}");
+    }
+
+    /**
+     * Writes the changes since the baseline: Added and Modified hold entries shaped like the
+     * ones in Files, Deleted holds paths. baseVersion is the server's version of the project
+     * the baseline was taken from, so the server can refuse a patch for a project that has
+     * moved on since.
+     */
+    void exportPatch(OutputStream out, String userId, String baseVersion) throws IOException {
+        List<String> added = new ArrayList<>(), modified = new ArrayList<>();
+        for (String path : walk()) {
+            File file = new File(projectDir.getParentFile(), path.substring(1));
+            MaterializeManifest.Entry before = baseline.previous(path);
+            if (before == null) added.add(path);
+            else if (file.isDirectory() ? !DIRECTORY_HASH.equals(before.hash) : isModified(path, file, before)) modified.add(path);
+        }
+        writeHeader(out, userId);
+        write(out, ",\"BaseVersion\":" + (baseVersion != null && baseVersion.matches("\\d+") ? baseVersion : "null"));
+        write(out, ",\"Added\":[");
+        for (int i = 0; i < added.size(); i++) {
+            if (i > 0) out.write(',');
+            writeEntry(out, added.get(i), false);
+        }
+        write(out, "],\"Modified\":[");
+        for (int i = 0; i < modified.size(); i++) {
+            if (i > 0) out.write(',');
+            writeEntry(out, modified.get(i), false);
+        }
+        write(out, "],\"Deleted\":[");
+        List<String> deleted = baseline.removedPaths();
+        for (int i = 0; i < deleted.size(); i++) {
+            if (i > 0) out.write(',');
+            writeString(out, deleted.get(i));
+        }
+        write(out, "]}");
+    }
+
+    // Lists the project's paths in name order, directories before their contents, and records them all
+    private List<String> walk() throws IOException {
+        if (!projectDir.isDirectory()) throw new FileNotFoundException(projectDir + " is not a directory");
+        List<String> paths = new ArrayList<>();
+        walk(projectDir, "/" + projectId, paths);
+        return paths;
+    }
+
+    private void walk(File dir, String path, List<String> paths) throws IOException {
+        String[] names = dir.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            String childPath = path + "/" + name;
+            // Compiled classes are rebuilt after open and never saved
+            if (childPath.equals("/" + projectId + "/bin")) continue;
+            File child = new File(dir, name);
+            paths.add(childPath);
+            if (child.isDirectory()) {
+                baseline.record(childPath, new MaterializeManifest.Entry(DIRECTORY_HASH, 0, 0));
+                walk(child, childPath, paths);
+            } else {
+                // Carried over for now; replaced with a hashed entry if the file gets read
+                MaterializeManifest.Entry before = baseline.previous(childPath);
+                if (before != null) baseline.record(childPath, before);
+            }
+        }
+    }
+
+    // Compares a file with its baseline entry, hashing it only when size or mtime changed
+    private boolean isModified(String path, File file, MaterializeManifest.Entry before) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (attrs.size() == before.size && attrs.lastModifiedTime().toMillis() == before.mtime
+                && !DIRECTORY_HASH.equals(before.hash)) return false;
+        if (attrs.size() != before.size || MaterializeManifest.UNKNOWN_HASH.equals(before.hash)) return true;
+        // Rewritten with the same length, possibly the same bytes
+        readFile(path, file);
+        return !before.hash.equals(lastHash);
+    }
+
+    private void writeHeader(OutputStream out, String userId) throws IOException {
+        write(out, "{\"Id\":");
+        writeString(out, projectId);
+        write(out, ",\"UserId\":");
+        if (userId == null) write(out, "null");
+        else writeString(out, userId);
+    }
+
+    private void writeEntry(OutputStream out, String path, boolean counted) throws IOException {
+        File file = new File(projectDir.getParentFile(), path.substring(1));
+        boolean isDirectory = file.isDirectory();
+        int length = isDirectory ? 0 : readFile(path, file);
+        boolean isBinary = !isDirectory && !isText(buffer, length);
+        write(out, "{\"path\":");
+        writeString(out, path);
+        write(out, ",\"content\":\"");
+        if (isBinary) {
+            OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    // FilterOutputStream would hand the encoded bytes on one at a time
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // Flush the final Base64 quantum but keep the payload stream open
+                    flush();
+                }
+            });
+            base64.write(buffer, 0, length);
+            base64.close();
+        } else if (!isDirectory) {
+            writeEscaped(out, buffer, length);
+        }
+        write(out, "\",\"isBinary\":" + isBinary + ",\"isDirectory\":" + isDirectory + ",\"children\":[]}");
+        if (!isDirectory) {
+            files++;
+            if (isBinary) binaryFiles++;
+        }
+    }
+
+    /**
+     * Reads the whole file into the shared buffer, growing it only for a file larger than
+     * the buffer, records its content hash, size and mtime as the file's new baseline entry,
+     * and returns its length. The text check needs the whole file before its encoding is
+     * chosen, so this one reused buffer is the only copy made.
+     */
+    private int readFile(String path, File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attrs.size();
+        if (size > MAX_BUFFER) throw new IOException("File too large: " + file);
+        if (buffer.length < size) buffer = new byte[(int) Math.min(MAX_BUFFER, Math.max(size, buffer.length * 2L))];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; (n = in.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += n;
+                if (length < buffer.length) continue;
+                // A full buffer usually means the whole file was read; grow only if it has since grown
+                int next = in.read();
+                if (next < 0) break;
+                if (buffer.length == MAX_BUFFER) throw new IOException("File too large: " + file);
+                buffer = Arrays.copyOf(buffer, (int) Math.min(MAX_BUFFER, buffer.length * 2L));
+                buffer[length++] = (byte) next;
+            }
+        }
+        bytesRead += length;
+        digest.update(buffer, 0, length);
+        StringBuilder hex = new StringBuilder(40);
+        for (byte b : digest.digest()) hex.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        lastHash = hex.toString();
+        baseline.record(path, new MaterializeManifest.Entry(lastHash, length, attrs.lastModifiedTime().toMillis()));
+        return length;
+    }
+
+    /**
+     * Returns true if bytes is well-formed UTF-8 without U+FFFD, matching the page's old
+     * fatal TextDecoder check. Runs of ASCII, the common case, cost one comparison per byte.
+     */
+    static boolean isText(byte[] bytes, int length) {
+        int i = 0;
+        while (i < length) {
+            int b = bytes[i];
+            if (b >= 0) {
+                i++;
+                continue;
+            }
+            int lead = b & 0xFF, count, min;
+            if (lead >= 0xC2 && lead <= 0xDF) { count = 1; min = 0x80; }
+            else if (lead >= 0xE0 && lead <= 0xEF) { count = 2; min = 0x800; }
+            else if (lead >= 0xF0 && lead <= 0xF4) { count = 3; min = 0x10000; }
+            else return false;
+            if (i + count >= length) return false;
+            int code = lead & (0x3F >> count);
+            for (int k = 1; k <= count; k++) {
+                int c = bytes[i + k] & 0xFF;
+                if ((c & 0xC0) != 0x80) return false;
+                code = (code << 6) | (c & 0x3F);
+            }
+            if (code < min || code > 0x10FFFF || (code >= 0xD800 && code <= 0xDFFF) || code == 0xFFFD) return false;
+            i += count + 1;
+        }
+        return true;
+    }
+
+    // Writes UTF-8 text as the inside of a JSON string; non-ASCII bytes pass through unchanged
+    private static void writeEscaped(OutputStream out, byte[] bytes, int length) throws IOException {
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            int c = bytes[i];
+            if (c != '"' && c != '\\' && (c < 0 || c >= 0x20)) continue;
+            out.write(bytes, runStart, i - runStart);
+            runStart = i + 1;
+            switch (c) {
+                case '"': out.write('\\'); out.write('"'); break;
+                case '\\': out.write('\\'); out.write('\\'); break;
+                case '\n': out.write('\\'); out.write('n'); break;
+                case '\r': out.write('\\'); out.write('r'); break;
+                case '\t': out.write('\\'); out.write('t'); break;
+                default:
+                    out.write('\\'); out.write('u'); out.write('0'); out.write('0');
+                    out.write(HEX[c >> 4]); out.write(HEX[c & 0xF]);
+            }
+        }
+        out.write(bytes, runStart, length - runStart);
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write('"');
+        writeEscaped(out, bytes, bytes.length);
+        out.write('"');
+    }
+
+    private static void write(OutputStream out, String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) out.write(ascii.charAt(i));
+    }
+}
@@ -0,0 +1,200 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Unescapes JSON string content, as chars or straight from the UTF-8 bytes of a document,
+ * for the readers and the materializer.
+ */
+class JsonUnescape {
+    /**
+     * Unescapes a JSON string literal to plain text. Strings without a backslash, the
+     * usual case for paths and keys, are returned as they are without allocating.
+     */
+    public static String unescapeJsonString(String s) {
+        int first = s.indexOf('\\');
+        if (first < 0) return s;
+        // Unescaping never makes a string longer
+        CharBuffer dst = CharBuffer.allocate(s.length());
+        copyRun(s, 0, first, dst);
+        unescapeJsonChars(s, first, s.length(), dst);
+        return new String(dst.array(), 0, dst.position());
+    }
+
+    /**
+     * Unescapes the chars between start and end of s into dst, which needs end - start
+     * chars at most. Runs without escapes are copied in bulk and hex digits are decoded
+     * in place. An escaped surrogate pair is kept together; an escaped surrogate without
+     * its other half becomes U+FFFD, as in unescapeJsonBytes, so the result always encodes.
+     * A dst that is a CharsetEncoder's input buffer lets the text be encoded to its file
+     * without an intermediate String.
+     */
+    public static void unescapeJsonChars(CharSequence s, int start, int end, CharBuffer dst) {
+        int runStart = start;
+        for (int i = start; i < end; ) {
+            if (s.charAt(i) != '\\' || i + 1 >= end) {
+                i++;
+                continue;
+            }
+            copyRun(s, runStart, i, dst);
+            char next = s.charAt(i + 1);
+            i += 2;
+            switch (next) {
+                case 'n': dst.put('\n'); break;
+                case 't': dst.put('\t'); break;
+                case 'r': dst.put('\r'); break;
+                case 'b': dst.put('\b'); break;
+                case 'f': dst.put('\f'); break;
+                case '\\': case '"': case '/': dst.put(next); break;
+                case 'u': {
+                    int code = i + 4 <= end ? parseHex(s, i) : -1;
+                    if (code < 0) {
+                        dst.put('\\').put('u');
+                        break;
+                    }
+                    i += 4;
+                    if (!Character.isSurrogate((char) code)) {
+                        dst.put((char) code);
+                        break;
+                    }
+                    int low = Character.isHighSurrogate((char) code) && i + 6 <= end && s.charAt(i) == '\\'
+                            && s.charAt(i + 1) == 'u' ? parseHex(s, i + 2) : -1;
+                    if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                        dst.put((char) code).put((char) low);
+                        i += 6;
+                    } else {
+                        dst.put('\uFFFD');
+                    }
+                    break;
+                }
+                default: // unknown escape, copy literally
+                    dst.put('\\').put(next);
+                    break;
+            }
+            runStart = i;
+        }
+        copyRun(s, runStart, end, dst);
+    }
+
+    // Bulk-copies chars, straight into the backing array when there is one
+    private static void copyRun(CharSequence s, int start, int end, CharBuffer dst) {
+        int n = end - start;
+        if (n <= 0) return;
+        if (dst.remaining() < n) throw new BufferOverflowException();
+        if (s instanceof String && dst.hasArray()) {
+            ((String) s).getChars(start, end, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + n);
+        } else {
+            for (int i = start; i < end; i++) dst.put(s.charAt(i));
+        }
+    }
+
+    /**
+     * Unescapes the JSON string bytes between start and end of src into dst, keeping
+     * the UTF-8 encoding as is. Runs without escapes are copied in bulk and \\uXXXX
+     * escapes (including surrogate pairs) are encoded straight to UTF-8, so the text
+     * is never decoded to chars. dst needs end - start bytes at most; it may be a view
+     * of src's own array positioned at or before start, which decodes in place.
+     */
+    public static void unescapeJsonBytes(ByteBuffer src, int start, int end, ByteBuffer dst) {
+        int runStart = start;
+        for (int i = start; i < end; ) {
+            if (src.get(i) != '\\' || i + 1 >= end) {
+                i++;
+                continue;
+            }
+            copyRange(src, runStart, i, dst);
+            byte next = src.get(i + 1);
+            i += 2;
+            switch (next) {
+                case 'n': dst.put((byte) '\n'); break;
+                case 't': dst.put((byte) '\t'); break;
+                case 'r': dst.put((byte) '\r'); break;
+                case 'b': dst.put((byte) '\b'); break;
+                case 'f': dst.put((byte) '\f'); break;
+                case '\\': case '"': case '/': dst.put(next); break;
+                case 'u': {
+                    int code = i + 4 <= end ? parseHex(src, i) : -1;
+                    if (code < 0) {
+                        dst.put((byte) '\\').put((byte) 'u');
+                        break;
+                    }
+                    i += 4;
+                    if (Character.isHighSurrogate((char) code) && i + 6 <= end && src.get(i) == '\\'
+                            && src.get(i + 1) == 'u') {
+                        int low = parseHex(src, i + 2);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            code = Character.toCodePoint((char) code, (char) low);
+                            i += 6;
+                        }
+                    }
+                    putUtf8(code, dst);
+                    break;
+                }
+                default: // unknown escape, copy literally
+                    dst.put((byte) '\\').put(next);
+                    break;
+            }
+            runStart = i;
+        }
+        copyRange(src, runStart, end, dst);
+    }
+
+    // Parses four hex digits at index i, or returns -1
+    private static int parseHex(ByteBuffer src, int i) {
+        int code = 0;
+        for (int k = 0; k < 4; k++) {
+            int d = hexValue(src.get(i + k));
+            if (d < 0) return -1;
+            code = (code << 4) | d;
+        }
+        return code;
+    }
+
+    private static int parseHex(CharSequence s, int i) {
+        int code = 0;
+        for (int k = 0; k < 4; k++) {
+            int d = hexValue(s.charAt(i + k));
+            if (d < 0) return -1;
+            code = (code << 4) | d;
+        }
+        return code;
+    }
+
+    // ASCII hex digits only; Character.digit would also accept other scripts' digits
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static void putUtf8(int code, ByteBuffer dst) {
+        if (code < 0x80) {
+            dst.put((byte) code);
+        } else if (code < 0x800) {
+            dst.put((byte) (0xC0 | (code >> 6))).put((byte) (0x80 | (code & 0x3F)));
+        } else if (code < 0x10000) {
+            if (Character.isSurrogate((char) code)) code = 0xFFFD; // unpaired surrogate
+            dst.put((byte) (0xE0 | (code >> 12))).put((byte) (0x80 | ((code >> 6) & 0x3F)))
+               .put((byte) (0x80 | (code & 0x3F)));
+        } else {
+            dst.put((byte) (0xF0 | (code >> 18))).put((byte) (0x80 | ((code >> 12) & 0x3F)))
+               .put((byte) (0x80 | ((code >> 6) & 0x3F))).put((byte) (0x80 | (code & 0x3F)));
+        }
+    }
+
+    private static void copyRange(ByteBuffer src, int start, int end, ByteBuffer dst) {
+        if (start >= end) return;
+        if (src.hasArray() && dst.hasArray()) {
+            // Heap buffers are copied without a view per run
+            if (dst.remaining() < end - start) throw new BufferOverflowException();
+            System.arraycopy(src.array(), src.arrayOffset() + start, dst.array(), dst.arrayOffset() + dst.position(), end - start);
+            dst.position(dst.position() + end - start);
+            return;
+        }
+        ByteBuffer run = src.duplicate();
+        run.limit(end).position(start);
+        dst.put(run);
+    }
+}
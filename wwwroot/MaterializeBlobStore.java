@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed index of decoded file bodies shared by every project under the output
+ * root, keyed by the same source hash as the manifests. The first file materialized with a
+ * given hash becomes its blob; later files with that hash, in this project or another one,
+ * are copied from it instead of being unescaped or Base64-decoded again.
+ * <p>
+ * CheerpJ's /files mount has no hard or symbolic links, so the blob is the first copy
+ * itself rather than a second one kept aside: sharing costs no extra storage. A blob is
+ * only used while its file still has the recorded size and modification time, so a file
+ * the student edited or deleted simply stops being one.
+ * <p>
+ * Stored as one tab-separated line per blob: hash, size, mtime, path.
+ */
+class MaterializeBlobStore {
+    private static final String HEADER = "# materialize blobs v1";
+
+    private final File file;
+    private final String outputRoot;
+    private final Map<String, MaterializeManifest.Entry> blobs = new LinkedHashMap<>();
+    private final Map<String, String> paths = new LinkedHashMap<>();
+    private boolean dirty;
+
+    private MaterializeBlobStore(File file, String outputRoot) {
+        this.file = file;
+        this.outputRoot = outputRoot;
+    }
+
+    // Returns a store that is never saved, for sinks that do not keep files between runs
+    static MaterializeBlobStore empty() {
+        return new MaterializeBlobStore(null, null);
+    }
+
+    // Loads the index at file; a missing or unreadable index is treated as empty
+    static MaterializeBlobStore load(File file, String outputRoot) {
+        MaterializeBlobStore store = new MaterializeBlobStore(file, outputRoot);
+        if (file.exists()) {
+            try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line = r.readLine();
+                if (HEADER.equals(line)) {
+                    while ((line = r.readLine()) != null) {
+                        String[] parts = line.split("\t", 4);
+                        if (parts.length < 4) continue;
+                        store.blobs.put(parts[0], new MaterializeManifest.Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                        store.paths.put(parts[0], parts[3]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Warning: ignoring unreadable blob index '" + file + "': " + e.getMessage());
+                store.blobs.clear();
+                store.paths.clear();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Returns the path (below the output root) of an intact file whose content has this
+     * hash, or null. Blobs that no longer match the disk are dropped.
+     */
+    synchronized String find(String hash) {
+        MaterializeManifest.Entry blob = blobs.get(hash);
+        if (blob == null) return null;
+        String path = paths.get(hash);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(new File(outputRoot + path).toPath(), BasicFileAttributes.class);
+            if (attrs.isRegularFile() && attrs.size() == blob.size && attrs.lastModifiedTime().toMillis() == blob.mtime) {
+                return path;
+            }
+        } catch (IOException e) {
+            // Deleted since it was recorded
+        }
+        blobs.remove(hash);
+        paths.remove(hash);
+        dirty = true;
+        return null;
+    }
+
+    /** The size recorded for the blob with this hash, or -1 if there is none. */
+    synchronized long size(String hash) {
+        MaterializeManifest.Entry blob = blobs.get(hash);
+        return blob == null ? -1 : blob.size;
+    }
+
+    // Makes a just-written file the blob for hash unless an intact one already exists
+    synchronized void add(String hash, String path, File onDisk) throws IOException {
+        if (blobs.containsKey(hash) && find(hash) != null) return;
+        BasicFileAttributes attrs = Files.readAttributes(onDisk.toPath(), BasicFileAttributes.class);
+        blobs.put(hash, new MaterializeManifest.Entry(hash, attrs.size(), attrs.lastModifiedTime().toMillis()));
+        paths.put(hash, path);
+        dirty = true;
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty || file == null) return;
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists()) parentDir.mkdirs();
+        try (BufferedWriter w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, MaterializeManifest.Entry> e : blobs.entrySet()) {
+                MaterializeManifest.Entry blob = e.getValue();
+                w.write(e.getKey() + '\t' + blob.size + '\t' + blob.mtime + '\t' + paths.get(e.getKey()));
+                w.write('\n');
+            }
+        }
+        dirty = false;
+    }
+}
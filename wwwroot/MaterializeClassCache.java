@@ -0,0 +1,193 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the compiled classes of a project next to its metadata, so that reopening a
+ * project whose sources did not change restores bin/ instead of leaving SnapCode to
+ * recompile everything with jdk.compiler.
+ * <p>
+ * The cache lives in /files/.materialize/&lt;projectId&gt;/classes/: a copy of bin/ and an
+ * index that records the toolchain (the page's class path, which names the compiler and
+ * library versions), the content hash of build.snapcode and of every source under src/,
+ * and the size and mtime of every cached class. Classes depend on each other, so the cache
+ * is restored only if the toolchain and every one of those hashes still match, and then
+ * as a whole.
+ * <p>
+ * The exporter collects the classes when a project is saved, and only if bin/ is fresh:
+ * every source must have its class, no older than the source.
+ */
+class MaterializeClassCache {
+    private static final String HEADER = "# class cache v1";
+    private static final String INDEX = "index.tsv";
+
+    private final File projectDir;
+    private final File cacheDir;
+    private final String toolchain;
+    private List<String> sources;
+
+    MaterializeClassCache(File projectDir, File cacheDir, String toolchain) {
+        this.projectDir = projectDir;
+        this.cacheDir = cacheDir;
+        this.toolchain = toolchain;
+    }
+
+    /**
+     * Copies the cached classes into bin/ if they were built from the sources now on disk
+     * and returns how many were copied, or -1 if the cache is missing or does not match.
+     * Classes already in bin/ with the cached content are left as they are.
+     */
+    int restore() throws IOException {
+        List<String> index = readIndex();
+        List<String> sources = sourceLines();
+        if (index == null || index.size() < sources.size() || !index.subList(0, sources.size()).equals(sources)) return -1;
+        List<String> classes = index.subList(sources.size(), index.size());
+        // Check the whole copy first, so that bin/ never gets only part of it
+        for (String line : classes) {
+            String[] parts = line.split("\t", 4);
+            if (new File(cacheDir, "bin/" + parts[3]).length() != Long.parseLong(parts[1])) return -1;
+        }
+        int copied = 0;
+        for (String line : classes) {
+            String[] parts = line.split("\t", 4);
+            File target = new File(projectDir, "bin/" + parts[3]);
+            File cached = new File(cacheDir, "bin/" + parts[3]);
+            long size = Long.parseLong(parts[1]);
+            // Exactly what the cache was collected from, or at least the same bytes
+            if (target.length() == size && target.lastModified() == Long.parseLong(parts[2])) continue;
+            if (target.length() != size || !Arrays.equals(Files.readAllBytes(target.toPath()), Files.readAllBytes(cached.toPath()))) {
+                target.getParentFile().mkdirs();
+                // The cached mtime is kept so the next save finds the cache current
+                Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                copied++;
+            }
+            // A class that looks older than its source is rebuilt
+            if (target.lastModified() < sourceTime(parts[3])) target.setLastModified(System.currentTimeMillis());
+        }
+        return copied;
+    }
+
+    /**
+     * Replaces the cache with the classes in bin/ and returns how many were stored, 0 if the
+     * cache already held them, or -1 if bin/ is missing or older than the sources.
+     */
+    int collect() throws IOException {
+        List<String> sources = sourceLines();
+        for (String line : sources) {
+            String path = line.substring(line.lastIndexOf('\t') + 1);
+            if (!path.startsWith("src/")) continue;
+            File source = new File(projectDir, path);
+            File compiled = new File(projectDir, "bin/" + path.substring(4, path.length() - 5) + ".class");
+            if (!compiled.isFile() || compiled.lastModified() < source.lastModified()) return -1;
+        }
+        List<String> lines = new ArrayList<>(sources);
+        List<String> classes = new ArrayList<>();
+        listClasses(new File(projectDir, "bin"), "", classes);
+        for (String path : classes) {
+            File file = new File(projectDir, "bin/" + path);
+            lines.add("class\t" + file.length() + "\t" + file.lastModified() + "\t" + path);
+        }
+        if (lines.equals(readIndex())) return 0;
+
+        // The index is the commit point: it is removed first and written last
+        File index = new File(cacheDir, INDEX);
+        cacheDir.mkdirs();
+        index.delete();
+        delete(new File(cacheDir, "bin"));
+        for (String path : classes) {
+            File target = new File(cacheDir, "bin/" + path);
+            target.getParentFile().mkdirs();
+            Files.copy(new File(projectDir, "bin/" + path).toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        File temp = new File(cacheDir, INDEX + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.newLine();
+            for (String line : lines) {
+                w.write(line);
+                w.newLine();
+            }
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return classes.size();
+    }
+
+    // The index lines without its header, or null if there is no readable index
+    private List<String> readIndex() throws IOException {
+        File index = new File(cacheDir, INDEX);
+        if (!index.isFile()) return null;
+        try (BufferedReader r = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(r.readLine())) return null;
+            List<String> lines = new ArrayList<>();
+            for (String line; (line = r.readLine()) != null; ) lines.add(line);
+            return lines;
+        }
+    }
+
+    // The toolchain line, then the hash of build.snapcode and every source, in path order
+    private List<String> sourceLines() throws IOException {
+        if (sources != null) return sources;
+        List<String> paths = new ArrayList<>();
+        if (new File(projectDir, "build.snapcode").isFile()) paths.add("build.snapcode");
+        List<String> java = new ArrayList<>();
+        listSources(new File(projectDir, "src"), "src/", java);
+        paths.addAll(java);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("toolchain\t" + toolchain);
+        for (String path : paths) {
+            byte[] hash = digest.digest(Files.readAllBytes(new File(projectDir, path).toPath()));
+            lines.add("source\t" + CreateSnapCodeProjectCheerpJ.hex(hash) + "\t" + path);
+        }
+        return sources = lines;
+    }
+
+    // The mtime of the source a class was compiled from; nested classes map to their outer class
+    private long sourceTime(String classPath) {
+        String name = classPath.substring(0, classPath.length() - 6);
+        int dollar = name.indexOf('$', name.lastIndexOf('/') + 1);
+        return new File(projectDir, "src/" + (dollar < 0 ? name : name.substring(0, dollar)) + ".java").lastModified();
+    }
+
+    private static void listSources(File dir, String prefix, List<String> paths) {
+        String[] names = dir.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) listSources(child, prefix + name + "/", paths);
+            else if (name.endsWith(".java")) paths.add(prefix + name);
+        }
+    }
+
+    private static void listClasses(File dir, String prefix, List<String> paths) {
+        String[] names = dir.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) listClasses(child, prefix + name + "/", paths);
+            else if (name.endsWith(".class")) paths.add(prefix + name);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        file.delete();
+    }
+}
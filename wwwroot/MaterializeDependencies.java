@@ -0,0 +1,201 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves the Maven dependencies a project's build.snapcode declares to jars bundled with
+ * the page, so that SnapCode never downloads them. SnapCode looks for a dependency in its
+ * Maven cache (user.home/maven_cache/&lt;group path&gt;/&lt;name&gt;/&lt;version&gt;/&lt;name&gt;-&lt;version&gt;.jar
+ * under CheerpJ) and only fetches it if that file is missing; the resolver puts the bundled
+ * jar there first, and records what it resolved in classpath.tsv in the project's metadata
+ * directory.
+ * <p>
+ * The table (wwwroot/Jdk/dependencies.tsv) has one line per bundled jar: group:name, a
+ * version range and the jar's path. A range is "*" or "[low,high]", inclusive at both ends,
+ * with either end left empty for no bound; versions compare segment by segment, numerically
+ * where both segments are numbers. Dependencies that no line covers are left to SnapCode.
+ * Coordinates other than plain Maven names are skipped, so that a shared project cannot
+ * make the page write a jar outside the Maven cache.
+ */
+class MaterializeDependencies {
+    private static final String HEADER = "# resolved classpath v1";
+
+    private static final class Bundled {
+        final String id;
+        final String low;
+        final String high;
+        final File jar;
+
+        Bundled(String id, String low, String high, File jar) {
+            this.id = id;
+            this.low = low;
+            this.high = high;
+            this.jar = jar;
+        }
+    }
+
+    private final List<Bundled> table;
+    private final File mavenCache;
+    int resolved;
+    int copied;
+    int unresolved;
+
+    private MaterializeDependencies(List<Bundled> table, File mavenCache) {
+        this.table = table;
+        this.mavenCache = mavenCache;
+    }
+
+    // Loads the table at file; mavenCache is where SnapCode looks for dependency jars
+    static MaterializeDependencies load(File file, File mavenCache) throws IOException {
+        List<Bundled> table = new ArrayList<>();
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\t");
+                if (parts.length != 3) throw new IOException("Malformed line in " + file + ": " + line);
+                String range = parts[1];
+                String low = "", high = "";
+                if (!range.equals("*")) {
+                    int comma = range.indexOf(',');
+                    if (!range.startsWith("[") || !range.endsWith("]") || comma < 0) throw new IOException("Malformed version range in " + file + ": " + range);
+                    low = range.substring(1, comma).trim();
+                    high = range.substring(comma + 1, range.length() - 1).trim();
+                }
+                table.add(new Bundled(parts[0], low, high, new File(parts[2])));
+            }
+        }
+        return new MaterializeDependencies(table, mavenCache);
+    }
+
+    /**
+     * Reads the Maven dependencies from buildFile, puts the bundled jar for each into the
+     * Maven cache unless an identical one is there, and writes the result to manifest.
+     */
+    void resolve(File buildFile, File manifest) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String[] dependency : parse(new String(Files.readAllBytes(buildFile.toPath()), StandardCharsets.UTF_8))) {
+            String id = dependency[0] + ":" + dependency[1];
+            // The coordinates come from a project anyone may have shared, and become a path below
+            if (!isCoordinate(dependency[0]) || !isCoordinate(dependency[1]) || !isCoordinate(dependency[2])) {
+                unresolved++;
+                System.err.println("Skipping dependency " + id + ":" + dependency[2] + ": not a valid Maven coordinate.");
+                continue;
+            }
+            Bundled bundled = find(id, dependency[2]);
+            if (bundled == null || !bundled.jar.isFile()) {
+                unresolved++;
+                System.err.println("Warning: no bundled jar for " + id + ":" + dependency[2] + "; SnapCode will download it.");
+                continue;
+            }
+            File target = new File(mavenCache, dependency[0].replace('.', '/') + "/" + dependency[1] + "/" + dependency[2]
+                    + "/" + dependency[1] + "-" + dependency[2] + ".jar");
+            if (!target.getCanonicalPath().startsWith(mavenCache.getCanonicalPath() + File.separator)) {
+                unresolved++;
+                System.err.println("Skipping dependency " + id + ":" + dependency[2] + ": its jar would be outside the Maven cache.");
+                continue;
+            }
+            if (target.length() != bundled.jar.length()) {
+                target.getParentFile().mkdirs();
+                Files.copy(bundled.jar.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copied++;
+            }
+            resolved++;
+            lines.add(id + ":" + dependency[2] + "\t" + target.getPath() + "\t" + bundled.jar.getPath());
+        }
+        manifest.getParentFile().mkdirs();
+        try (BufferedWriter w = Files.newBufferedWriter(manifest.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.newLine();
+            for (String line : lines) {
+                w.write(line);
+                w.newLine();
+            }
+        }
+    }
+
+    /**
+     * Returns group, name and version of every Maven dependency; SnapCode writes them as flat
+     * objects or as "group:name:version". Scanned by hand rather than with java.util.regex,
+     * whose classes would otherwise be loaded on the way to ready-core.
+     */
+    static List<String[]> parse(String buildFile) {
+        List<String[]> dependencies = new ArrayList<>();
+        int key = buildFile.indexOf("\"Dependencies\"");
+        int start = key < 0 ? -1 : buildFile.indexOf('[', key);
+        int end = start < 0 ? -1 : buildFile.indexOf(']', start);
+        if (end < 0) return dependencies;
+        for (int i = start + 1; i < end; i++) {
+            char c = buildFile.charAt(i);
+            if (c == '"') {
+                int close = buildFile.indexOf('"', i + 1);
+                if (close < 0 || close > end) break;
+                String[] parts = buildFile.substring(i + 1, close).split(":");
+                if (parts.length == 3) dependencies.add(parts);
+                i = close;
+            } else if (c == '{') {
+                int close = buildFile.indexOf('}', i);
+                if (close < 0 || close > end) break;
+                String object = buildFile.substring(i, close + 1);
+                i = close;
+                if (!"MavenDependency".equals(field(object, "Class"))) continue;
+                String group = field(object, "Group"), name = field(object, "Name"), version = field(object, "Version");
+                if (group != null && name != null && version != null) dependencies.add(new String[] {group, name, version});
+            }
+        }
+        return dependencies;
+    }
+
+    // The string value of "name" in a flat JSON object, or null
+    private static String field(String object, String name) {
+        int key = object.indexOf("\"" + name + "\"");
+        if (key < 0) return null;
+        int i = key + name.length() + 2;
+        while (i < object.length() && (object.charAt(i) == ':' || Character.isWhitespace(object.charAt(i)))) i++;
+        if (i >= object.length() || object.charAt(i) != '"') return null;
+        int close = object.indexOf('"', i + 1);
+        return close < 0 ? null : object.substring(i + 1, close);
+    }
+
+    // The first table line for id whose range holds version
+    private Bundled find(String id, String version) {
+        for (Bundled bundled : table) {
+            if (bundled.id.equals(id) && (bundled.low.isEmpty() || compareVersions(version, bundled.low) >= 0)
+                    && (bundled.high.isEmpty() || compareVersions(version, bundled.high) <= 0)) return bundled;
+        }
+        return null;
+    }
+
+    // True for a group, name or version made only of letters, digits, '.', '_' and '-', with no empty or '..' segment
+    static boolean isCoordinate(String s) {
+        if (s.isEmpty() || s.startsWith(".") || s.endsWith(".") || s.contains("..")) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_' || c == '-')) return false;
+        }
+        return true;
+    }
+
+    static int compareVersions(String a, String b) {
+        String[] as = a.replace('-', '.').split("\\."), bs = b.replace('-', '.').split("\\.");
+        for (int i = 0; i < Math.max(as.length, bs.length); i++) {
+            String x = i < as.length ? as[i] : "0", y = i < bs.length ? bs[i] : "0";
+            int c = isNumber(x) && isNumber(y) ? Long.compare(Long.parseLong(x), Long.parseLong(y)) : x.compareTo(y);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty() || s.length() > 18) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Writes to a directory of the local file system: /files in CheerpJ, any directory elsewhere. */
+class MaterializeFileSink implements MaterializeSink {
+    private final String root;
+
+    MaterializeFileSink(String root) {
+        this.root = root;
+    }
+
+    @Override
+    public String root() {
+        return root;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public boolean directory(String path) {
+        File dir = new File(root + path);
+        return dir.exists() || dir.mkdirs();
+    }
+
+    @Override
+    public SeekableByteChannel create(String path) throws IOException {
+        return FileChannel.open(new File(root + path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public boolean delete(String path) {
+        File file = new File(root + path);
+        return file.isFile() && file.delete();
+    }
+
+    @Override
+    public void close() { }
+}
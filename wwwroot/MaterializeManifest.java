@@ -0,0 +1,150 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records, per project directory, the hash of every file the materializer wrote along
+ * with the size and modification time it had on disk afterwards. On the next open a file
+ * whose source hash matches and which is still untouched on disk is skipped, and files
+ * that are no longer in the project can be found and removed.
+ * <p>
+ * Stored as one tab-separated line per file: hash, size, mtime, path. Methods are
+ * synchronized because pipeline workers record files concurrently. The exporter keeps its
+ * save baseline in the same format, with content hashes instead of source hashes.
+ */
+class MaterializeManifest {
+    private static final String HEADER = "# materialize manifest v1";
+    /** Hash of an entry whose size and mtime are known but whose content was never hashed. */
+    static final String UNKNOWN_HASH = "-";
+
+    static final class Entry {
+        final String hash;
+        final long size;
+        final long mtime;
+
+        Entry(String hash, long size, long mtime) {
+            this.hash = hash;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new LinkedHashMap<>();
+
+    private MaterializeManifest(File file, Map<String, Entry> previous) {
+        this.file = file;
+        this.previous = previous;
+    }
+
+    // Loads the manifest at file; a missing or unreadable manifest is treated as empty
+    static MaterializeManifest load(File file) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (file.exists()) {
+            try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line = r.readLine();
+                if (HEADER.equals(line)) {
+                    while ((line = r.readLine()) != null) {
+                        String[] parts = line.split("\t", 4);
+                        if (parts.length < 4) continue;
+                        entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Warning: ignoring unreadable manifest '" + file + "': " + e.getMessage());
+                entries.clear();
+            }
+        }
+        return new MaterializeManifest(file, entries);
+    }
+
+    // Returns a manifest that ignores any earlier run, for forced full rewrites
+    static MaterializeManifest empty(File file) {
+        return new MaterializeManifest(file, new HashMap<>());
+    }
+
+    /**
+     * Returns true if path was written from content with this hash last time and the file
+     * on disk still has the recorded size and modification time. The entry is carried over.
+     */
+    synchronized boolean isUnchanged(String path, String hash, File onDisk) {
+        Entry entry = previous.get(path);
+        if (entry == null || !entry.hash.equals(hash)) return false;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(onDisk.toPath(), BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || attrs.size() != entry.size
+                    || attrs.lastModifiedTime().toMillis() != entry.mtime) return false;
+        } catch (IOException e) {
+            return false;
+        }
+        current.put(path, entry);
+        return true;
+    }
+
+    // Records a file that was just written, reading back its size and modification time
+    synchronized void recordWritten(String path, String hash, File onDisk) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(onDisk.toPath(), BasicFileAttributes.class);
+        current.put(path, new Entry(hash, attrs.size(), attrs.lastModifiedTime().toMillis()));
+    }
+
+    // Carries over the entry of a file that could not be written this time, so it is not removed as stale
+    synchronized void keepPrevious(String path) {
+        Entry entry = previous.get(path);
+        if (entry != null) current.putIfAbsent(path, entry);
+    }
+
+    /** The entry the loaded manifest had for path, or null. */
+    synchronized Entry previous(String path) {
+        return previous.get(path);
+    }
+
+    // Records an entry whose size and mtime the caller already knows, or carries one over
+    synchronized void record(String path, Entry entry) {
+        current.put(path, entry);
+    }
+
+    /** A copy of the entries recorded in this run. */
+    synchronized Map<String, Entry> entries() {
+        return new LinkedHashMap<>(current);
+    }
+
+    /** Paths written by the previous run that were not part of this one. */
+    synchronized List<String> removedPaths() {
+        List<String> removed = new ArrayList<>();
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) removed.add(path);
+        }
+        Collections.sort(removed);
+        return removed;
+    }
+
+    synchronized void save() throws IOException {
+        save(file);
+    }
+
+    // Writes the entries recorded in this run to target instead of the file they were loaded from
+    synchronized void save(File target) throws IOException {
+        File parentDir = target.getParentFile();
+        if (parentDir != null && !parentDir.exists()) parentDir.mkdirs();
+        try (BufferedWriter w = Files.newBufferedWriter(target.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, Entry> e : current.entrySet()) {
+                Entry entry = e.getValue();
+                w.write(entry.hash + '\t' + entry.size + '\t' + entry.mtime + '\t' + e.getKey());
+                w.write('\n');
+            }
+        }
+    }
+}
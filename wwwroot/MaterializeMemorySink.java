@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the materialized files in memory. Used by tests and benchmarks to measure parsing
+ * and decoding without any file-system cost; the zip sink buffers each open file the same way.
+ */
+class MaterializeMemorySink implements MaterializeSink {
+    private final Map<String, FileBuffer> files = new ConcurrentHashMap<>();
+
+    @Override
+    public String root() {
+        return "memory:";
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public boolean directory(String path) {
+        return true;
+    }
+
+    @Override
+    public SeekableByteChannel create(String path) {
+        FileBuffer file = new FileBuffer();
+        files.put(path, file);
+        return file;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return files.remove(path) != null;
+    }
+
+    @Override
+    public void close() throws IOException { }
+
+    /** The content of every file written so far, sorted by path. */
+    Map<String, byte[]> files() {
+        Map<String, byte[]> copy = new TreeMap<>();
+        for (Map.Entry<String, FileBuffer> e : files.entrySet()) copy.put(e.getKey(), e.getValue().toByteArray());
+        return copy;
+    }
+
+    /** Total size of the files written so far. */
+    long size() {
+        long size = 0;
+        for (FileBuffer file : files.values()) size += file.size();
+        return size;
+    }
+
+    // A growable byte array behind a write-only channel; truncate is what the writer needs for invalid content
+    static class FileBuffer implements SeekableByteChannel {
+        private byte[] bytes = new byte[256];
+        private int size;
+        private int position;
+        private boolean open = true;
+
+        @Override
+        public int write(ByteBuffer src) throws ClosedChannelException {
+            if (!open) throw new ClosedChannelException();
+            int n = src.remaining();
+            if (position + n > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + n));
+            src.get(bytes, position, n);
+            position += n;
+            size = Math.max(size, position);
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new NonReadableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            position = (int) newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long newSize) {
+            if (newSize < size) size = (int) newSize;
+            if (position > size) position = size;
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        // Writes the content without copying it first
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+}
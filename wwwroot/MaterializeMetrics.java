@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Counters and per-phase timings for one materialization run. Printed as a single
+ * summary line and saved as JSON so open latency can be compared across releases.
+ */
+class MaterializeMetrics {
+    /** Files written; unchanged files that were skipped are counted separately. */
+    int files;
+    /** Written files that were copied from the blob store instead of being decoded. */
+    int copied;
+    int unchanged;
+    int removed;
+    /** Entries dropped because an earlier entry had the same path. */
+    int duplicates;
+    int directories;
+    long inputBytes;
+    long bytesWritten;
+    long readNanos;
+    long parseNanos;
+    long hashNanos;
+    long decodeNanos;
+    long writeNanos;
+    /** Time the parser spent blocked on a full pipeline queue. */
+    long stallNanos;
+    /** exists() calls skipped because the directory was already created or found during this run. */
+    int fsCallsSaved;
+    /** Classes copied from the class cache to bin/, or -1 if the cache did not match the sources. */
+    int classesRestored = -1;
+    /** build.snapcode dependencies resolved to bundled jars. */
+    int dependencies;
+    /** Time spent resolving dependencies, including copying jars into the Maven cache. */
+    long resolveNanos;
+    /** In priority mode, the time until build.snapcode and the sources were on disk. */
+    long readyCoreNanos;
+    /** Wall-clock time of the whole run; phase times are summed across workers and can exceed it. */
+    long wallNanos;
+
+    long totalNanos() {
+        return wallNanos > 0 ? wallNanos : readNanos + parseNanos + handlerNanos();
+    }
+
+    // Time booked inside the reader's handler callbacks
+    long handlerNanos() {
+        return hashNanos + decodeNanos + writeNanos + stallNanos;
+    }
+
+    // Adds the counters and timings of a worker's metrics to these
+    void add(MaterializeMetrics other) {
+        files += other.files;
+        copied += other.copied;
+        unchanged += other.unchanged;
+        removed += other.removed;
+        duplicates += other.duplicates;
+        directories += other.directories;
+        fsCallsSaved += other.fsCallsSaved;
+        bytesWritten += other.bytesWritten;
+        hashNanos += other.hashNanos;
+        decodeNanos += other.decodeNanos;
+        writeNanos += other.writeNanos;
+    }
+
+    String summary() {
+        return String.format(Locale.ROOT,
+                "Materialized %d files (%d written, %d copied, %d unchanged, %d removed, %d duplicates, %d directories, %d bytes) in %d ms: "
+                        + "read %d ms, parse %d ms, hash %d ms, decode %d ms, write %d ms, queue wait %d ms; %d filesystem calls saved",
+                files + unchanged, files, copied, unchanged, removed, duplicates, directories, bytesWritten, millis(totalNanos()), millis(readNanos),
+                millis(parseNanos), millis(hashNanos), millis(decodeNanos), millis(writeNanos), millis(stallNanos), fsCallsSaved);
+    }
+
+    String toJson(String projectId) {
+        return String.format(Locale.ROOT,
+                "{\"projectId\":\"%s\",\"timestamp\":%d,\"files\":%d,\"copied\":%d,\"unchanged\":%d,\"removed\":%d,"
+                        + "\"duplicates\":%d,\"directories\":%d,\"fsCallsSaved\":%d,\"inputBytes\":%d,\"bytesWritten\":%d,\"readMs\":%.3f,\"parseMs\":%.3f,"
+                        + "\"hashMs\":%.3f,\"decodeMs\":%.3f,\"writeMs\":%.3f,\"queueWaitMs\":%.3f,\"readyCoreMs\":%.3f,"
+                        + "\"classesRestored\":%d,\"dependencies\":%d,\"resolveMs\":%.3f,\"totalMs\":%.3f}",
+                projectId, System.currentTimeMillis(), files, copied, unchanged, removed, duplicates, directories, fsCallsSaved, inputBytes, bytesWritten,
+                readNanos / 1e6, parseNanos / 1e6, hashNanos / 1e6, decodeNanos / 1e6, writeNanos / 1e6,
+                stallNanos / 1e6, readyCoreNanos / 1e6, classesRestored, dependencies, resolveNanos / 1e6, totalNanos() / 1e6);
+    }
+
+    // Writes the metrics as JSON, creating the parent directory if needed
+    void write(File file, String projectId) throws IOException {
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists()) parentDir.mkdirs();
+        Files.write(file.toPath(), toJson(projectId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+}
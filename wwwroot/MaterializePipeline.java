@@ -0,0 +1,133 @@
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the decode and write side of materialization on worker threads. The parser keeps
+ * tokenizing while workers unescape, Base64-decode and write; the bounded queue between
+ * them applies backpressure, so the number of entries in flight (and the decode buffers
+ * they hold) never exceeds the queue capacity plus one per worker.
+ * <p>
+ * Workers are virtual threads when the runtime has them and plain daemon threads
+ * otherwise. Each worker writes through its own writer and metrics, merged in finish().
+ * Pieces of a chunked file must be appended in order, so they are written on the
+ * parser's thread instead; a piece's buffer then never outlives the call either.
+ */
+class MaterializePipeline implements ProjectEntryHandler {
+    private static final Task DONE = new Task(null, false, null, null, -1, -1);
+
+    private static final class Task {
+        final String path;
+        final boolean isDirectory;
+        final Encoding encoding;
+        final ByteBuffer src;
+        final int contentStart;
+        final int contentEnd;
+
+        Task(String path, boolean isDirectory, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.encoding = encoding;
+            this.src = src;
+            this.contentStart = contentStart;
+            this.contentEnd = contentEnd;
+        }
+    }
+
+    private final BlockingQueue<Task> queue;
+    private final MaterializeMetrics metrics;
+    private final MaterializeMetrics[] workerMetrics;
+    private final Thread[] threads;
+    private final CreateSnapCodeProjectCheerpJ inlineWriter;
+    private volatile Throwable failure;
+
+    MaterializePipeline(CreateSnapCodeProjectCheerpJ writer, int workers, int capacity, MaterializeMetrics metrics) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.metrics = metrics;
+        this.workerMetrics = new MaterializeMetrics[workers];
+        this.threads = new Thread[workers];
+        // Runs on the parser's thread, so it can book into the parser's metrics
+        this.inlineWriter = writer.forWorker(metrics);
+        ThreadFactory factory = newThreadFactory();
+        for (int i = 0; i < workers; i++) {
+            workerMetrics[i] = new MaterializeMetrics();
+            CreateSnapCodeProjectCheerpJ workerWriter = writer.forWorker(workerMetrics[i]);
+            threads[i] = factory.newThread(() -> work(workerWriter));
+            threads[i].setName("materialize-" + i);
+            threads[i].start();
+        }
+    }
+
+    @Override
+    public void directory(String path) {
+        put(new Task(path, true, null, null, -1, -1));
+    }
+
+    @Override
+    public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        put(new Task(path, false, encoding, src, contentStart, contentEnd));
+    }
+
+    @Override
+    public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        inlineWriter.chunk(path, chunk, encoding, src, contentStart, contentEnd);
+    }
+
+    /**
+     * Waits until every queued entry is written, then merges the worker metrics. Must be
+     * called even if parsing failed, so that no worker is left running.
+     */
+    void finish() throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) queue.put(DONE);
+        for (Thread thread : threads) thread.join();
+        inlineWriter.finishChunked();
+        for (MaterializeMetrics m : workerMetrics) metrics.add(m);
+        if (failure != null) throw new IllegalStateException("Materialize worker failed", failure);
+    }
+
+    // Hands an entry to the workers, blocking while the queue is full
+    private void put(Task task) {
+        long start = System.nanoTime();
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing '" + task.path + "'", e);
+        }
+        metrics.stallNanos += System.nanoTime() - start;
+    }
+
+    private void work(CreateSnapCodeProjectCheerpJ writer) {
+        try {
+            for (Task task = queue.take(); task != DONE; task = queue.take()) {
+                try {
+                    if (task.isDirectory) writer.directory(task.path);
+                    else writer.file(task.path, task.encoding, task.src, task.contentStart, task.contentEnd);
+                } catch (RuntimeException | Error e) {
+                    // Keep draining so the parser never blocks on a dead worker
+                    if (failure == null) failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Uses Thread.ofVirtual() where available (JDK 21+); this class still targets Java 11
+    private static ThreadFactory newThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
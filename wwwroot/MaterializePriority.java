@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back file entries while a document is read, so that the files SnapCode needs to
+ * open a project (build.snapcode and src/**&#47;*.java) can be written before any asset.
+ * Directories and pieces of chunked files are handed on as they arrive; the held files
+ * are spans of the reader's buffer, so holding them copies no content.
+ * <p>
+ * While replaying, a line "[progress] &lt;phase&gt; &lt;done&gt;/&lt;total&gt;" is printed each time
+ * another percent of the phase's files has been handed on, for the loader to parse.
+ */
+class MaterializePriority implements ProjectEntryHandler {
+
+    private static final class Held {
+        final String path;
+        final Encoding encoding;
+        final ByteBuffer src;
+        final int contentStart;
+        final int contentEnd;
+
+        Held(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+            this.path = path;
+            this.encoding = encoding;
+            this.src = src;
+            this.contentStart = contentStart;
+            this.contentEnd = contentEnd;
+        }
+    }
+
+    private final ProjectEntryHandler target;
+    private final List<Held> core = new ArrayList<>();
+    private final List<Held> assets = new ArrayList<>();
+
+    /** target receives the directories and chunk pieces, which are not held back. */
+    MaterializePriority(ProjectEntryHandler target) {
+        this.target = target;
+    }
+
+    // True for the files a project needs to open: its build file and Java sources
+    static boolean isCore(String path) {
+        int slash = path.indexOf('/', 1);
+        if (slash < 0) return false;
+        String relative = path.substring(slash);
+        return relative.equals("/build.snapcode") || relative.startsWith("/src/") && relative.endsWith(".java");
+    }
+
+    @Override
+    public void directory(String path) {
+        target.directory(path);
+    }
+
+    @Override
+    public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        (isCore(path) ? core : assets).add(new Held(path, encoding, src, contentStart, contentEnd));
+    }
+
+    @Override
+    public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        // A piece may live in its own buffer, and pieces must stay in order, so they are never held
+        target.chunk(path, chunk, encoding, src, contentStart, contentEnd);
+    }
+
+    /** Hands the held core files to handler. */
+    void replayCore(ProjectEntryHandler handler) {
+        replay("core", core, handler);
+    }
+
+    /** Hands the held asset files to handler. */
+    void replayAssets(ProjectEntryHandler handler) {
+        replay("assets", assets, handler);
+    }
+
+    private static void replay(String phase, List<Held> files, ProjectEntryHandler handler) {
+        int total = files.size();
+        int reported = -1;
+        for (int i = 0; i < total; i++) {
+            Held file = files.get(i);
+            handler.file(file.path, file.encoding, file.src, file.contentStart, file.contentEnd);
+            files.set(i, null);
+            int percent = (int) ((i + 1) * 100L / total);
+            if (percent != reported) {
+                System.out.println("[progress] " + phase + " " + (i + 1) + "/" + total);
+                reported = percent;
+            }
+        }
+        if (total == 0) System.out.println("[progress] " + phase + " 0/0");
+        files.clear();
+    }
+}
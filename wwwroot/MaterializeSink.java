@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Where the materializer puts a project's files. Paths are normalized project paths
+ * (/&lt;projectId&gt;/src/Main.java). Channels from create are written by one thread each,
+ * but different files may be created concurrently by pipeline workers.
+ * <p>
+ * Only a local sink keeps its files between runs, so manifests, the blob store, readiness
+ * markers and metrics.json are only kept for one; every other sink always writes everything.
+ */
+interface MaterializeSink {
+
+    /** Prefix that names a project path in this sink, e.g. "/files"; for a local sink, the directory itself. */
+    String root();
+
+    /** True if files are written to the local file system below root() and persist between runs. */
+    boolean isLocal();
+
+    /** Creates the directory at path and any missing parents; "" is the root. Returns false if that failed. */
+    boolean directory(String path);
+
+    /** Opens the file at path for writing, replacing any earlier content. Its directory already exists. */
+    SeekableByteChannel create(String path) throws IOException;
+
+    /** Removes the file at path; returns false if there was none. */
+    boolean delete(String path);
+
+    /** Completes the output, e.g. writes a zip's central directory. Called once after the last project. */
+    void close() throws IOException;
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a project archive, e.g. for download. Each file is buffered only while it is
+ * open and goes into the archive as soon as it is closed, so memory holds the files being
+ * written rather than the whole project. Entry names are project paths without the
+ * leading '/', the layout ProjectZipReader reads back.
+ * <p>
+ * An entry cannot be taken back out of a zip stream. A file that is removed or written
+ * again after its entry went out, such as a chunked file whose last piece fails its check,
+ * is left out when the sink is closed, by copying the archive once without it.
+ */
+class MaterializeZipSink implements MaterializeSink {
+    private final String zipPath;
+    private final ZipOutputStream zip;
+    /** Names of the entries in the archive so far. */
+    private final Set<String> written = new HashSet<>();
+    /** Entries that were removed or replaced after they were written. */
+    private final Set<String> obsolete = new HashSet<>();
+    /** The new content of replaced entries, written at the end. */
+    private final Map<String, byte[]> replacements = new TreeMap<>();
+
+    MaterializeZipSink(String zipPath) throws IOException {
+        this.zipPath = zipPath;
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipPath)));
+    }
+
+    @Override
+    public String root() {
+        return zipPath + "!";
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean directory(String path) {
+        if (path.isEmpty()) return true;
+        String name = path.substring(1) + "/";
+        if (!written.add(name)) return true;
+        try {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.closeEntry();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing directory '" + root() + path + "': " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel create(String path) {
+        return new MaterializeMemorySink.FileBuffer() {
+            @Override
+            public void close() {
+                if (!isOpen()) return;
+                super.close();
+                add(path.substring(1), this);
+            }
+        };
+    }
+
+    // Writes a closed file to the archive, or keeps it aside if its entry is already there
+    private synchronized void add(String name, MaterializeMemorySink.FileBuffer file) {
+        try {
+            if (written.add(name)) {
+                zip.putNextEntry(new ZipEntry(name));
+                file.writeTo(zip);
+                zip.closeEntry();
+            } else {
+                obsolete.add(name);
+                replacements.put(name, file.toByteArray());
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing file '" + root() + "/" + name + "': " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String path) {
+        String name = path.substring(1);
+        if (replacements.remove(name) != null) return true;
+        return written.contains(name) && obsolete.add(name);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        zip.close();
+        if (obsolete.isEmpty()) return;
+        File archive = new File(zipPath);
+        File streamed = new File(zipPath + ".tmp");
+        Files.move(archive.toPath(), streamed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (ZipFile in = new ZipFile(streamed);
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)))) {
+            for (ZipEntry entry : Collections.list(in.entries())) {
+                if (obsolete.contains(entry.getName())) continue;
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream body = in.getInputStream(entry)) {
+                    body.transferTo(out);
+                }
+                out.closeEntry();
+            }
+            for (Map.Entry<String, byte[]> e : replacements.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey()));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        } finally {
+            streamed.delete();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for project.snapbin, the length-prefixed binary alternative to project.json.
+ * File content is stored raw, so entries are handed to the handler as RAW spans of the
+ * source buffer and no unescaping or Base64 decoding takes place. All integers are
+ * little-endian:
+ * <pre>
+ *   magic       8 bytes   "SNAPBIN1"
+ *   count       u32       number of entries
+ *   idLength    u32       followed by the project id in UTF-8
+ *   entries     count x { flags u8 (1 = directory, 2 = binary, 4 = class cache), pathLength u16, path UTF-8,
+ *                         offset u64, length u64 }
+ *   data        file bodies; offsets are from the start of the container
+ * </pre>
+ * Paths are project-relative (/&lt;projectId&gt;/src/Main.java), as in project.json. Class
+ * cache entries (template images made by BakeTemplateImage) have paths relative to the
+ * project's class cache instead (index.tsv, bin/Main.class) and are not project files.
+ * <p>
+ * Given a project id, a container made for another id, such as a template image, is
+ * read as if it had been made for that project.
+ */
+class ProjectContainerReader {
+    static final int FLAG_DIRECTORY = 1;
+    static final int FLAG_BINARY = 2;
+    static final int FLAG_CLASS_CACHE = 4;
+
+    private static final byte[] MAGIC = "SNAPBIN1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final class CacheEntry {
+        final String path;
+        final int start;
+        final int end;
+
+        CacheEntry(String path, int start, int end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final ByteBuffer src;
+    private final String rebaseId;
+    private String projectId;
+    private final List<CacheEntry> cacheEntries = new ArrayList<>();
+
+    ProjectContainerReader(ByteBuffer src) {
+        this(src, null);
+    }
+
+    /** projectId, if not null, replaces the project id the container was made for. */
+    ProjectContainerReader(ByteBuffer src, String projectId) {
+        this.src = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.rebaseId = projectId;
+    }
+
+    // Returns true if buf starts with the container magic
+    static boolean isContainer(ByteBuffer buf) {
+        if (buf.limit() < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /** The project id from the header, once read has been called. */
+    String getProjectId() {
+        return projectId;
+    }
+
+    // Reads the entry table and reports every entry, pointing the handler at the raw bodies
+    void read(ProjectEntryHandler handler) throws IOException {
+        if (!isContainer(src)) throw error(0, "missing SNAPBIN1 header");
+        try {
+            src.position(MAGIC.length);
+            int count = src.getInt();
+            projectId = readUtf8(src.getInt());
+            String from = "/" + projectId;
+            if (rebaseId != null) projectId = rebaseId;
+            String to = "/" + projectId;
+            for (int i = 0; i < count; i++) {
+                int flags = src.get() & 0xFF;
+                String path = readUtf8(src.getShort() & 0xFFFF);
+                long offset = src.getLong();
+                long length = src.getLong();
+                if (path.isEmpty()) {
+                    System.err.println("Skipping file with missing path.");
+                    continue;
+                }
+                if (!path.startsWith("/")) path = "/" + path;
+                if (offset < 0 || length < 0 || offset + length > src.limit()) {
+                    throw error(src.position(), "entry '" + path + "' points outside the container");
+                }
+                if ((flags & FLAG_CLASS_CACHE) != 0) {
+                    cacheEntries.add(new CacheEntry(path, (int) offset, (int) (offset + length)));
+                    continue;
+                }
+                if (!from.equals(to) && (path.equals(from) || path.startsWith(from + "/"))) path = to + path.substring(from.length());
+                if ((flags & FLAG_DIRECTORY) != 0) {
+                    handler.directory(path);
+                    continue;
+                }
+                handler.file(path, ProjectEntryHandler.Encoding.RAW, src, (int) offset, (int) (offset + length));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // The table or a path runs past the end of the buffer
+            throw error(src.position(), "truncated entry table");
+        }
+    }
+
+    /** True if read found class cache entries. */
+    boolean hasClassCache() {
+        return !cacheEntries.isEmpty();
+    }
+
+    /**
+     * Writes the class cache entries into dir, index.tsv last so that the cache only
+     * counts once all of its classes are there.
+     */
+    void writeClassCache(File dir) throws IOException {
+        CacheEntry index = null;
+        for (CacheEntry entry : cacheEntries) {
+            if (entry.path.equals("/index.tsv")) index = entry;
+            else writeCacheEntry(dir, entry);
+        }
+        if (index != null) writeCacheEntry(dir, index);
+    }
+
+    private void writeCacheEntry(File dir, CacheEntry entry) throws IOException {
+        String path = ProjectPathPlan.normalize(entry.path);
+        if (path == null) throw new IOException("Class cache entry '" + entry.path + "' is outside the cache");
+        File file = new File(dir, path.substring(1));
+        file.getParentFile().mkdirs();
+        ByteBuffer body = src.duplicate();
+        body.limit(entry.end).position(entry.start);
+        try (OutputStream out = Files.newOutputStream(file.toPath()); WritableByteChannel channel = Channels.newChannel(out)) {
+            while (body.hasRemaining()) channel.write(body);
+        }
+    }
+
+    private String readUtf8(int length) {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(src.position() + length);
+        src.position(src.position() + length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private static IOException error(int offset, String message) {
+        return new IOException("Malformed project.snapbin at offset " + offset + ": " + message);
+    }
+}
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the entries of a project from one of the project readers, in document order.
+ * Paths are project-relative and start with '/'; content is passed as a span of the
+ * reader's source buffer and is only valid while that buffer is.
+ */
+interface ProjectEntryHandler {
+
+    /** How a content span is encoded in the source buffer. */
+    enum Encoding {
+        /** A JSON string body: UTF-8 text that may still contain escapes. */
+        JSON_TEXT,
+        /** A JSON string body holding Base64 of the file's bytes. */
+        JSON_BASE64,
+        /** The file's bytes as they should be written. */
+        RAW
+    }
+
+    /**
+     * Describes one piece of a file that is split across consecutive entries. count, size
+     * and sha1 are taken from piece 0; size is -1 and sha1 null when not given.
+     */
+    final class Chunk {
+        final int index;
+        final int count;
+        final long size;
+        final String sha1;
+
+        Chunk(int index, int count, long size, String sha1) {
+            this.index = index;
+            this.count = count;
+            this.size = size;
+            this.sha1 = sha1;
+        }
+    }
+
+    void directory(String path);
+
+    /** contentStart is -1 when the entry has no content. */
+    void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd);
+
+    /**
+     * Appends one piece of a chunked file. Pieces of a file arrive in index order, and
+     * piece 0 replaces any earlier content. The span is only valid during the call.
+     */
+    void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd);
+}
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass tokenizer for the project.json document written by JdkController.
+ * Walks the Files array once and reports every entry to a handler as soon as its
+ * fields are known. Nested children are read in place, and file content is passed
+ * as a span of the source so it is never copied before it reaches the writer.
+ * <p>
+ * The reader works on the raw UTF-8 bytes: every structural character is ASCII, so
+ * only keys and paths are ever decoded and content spans stay undecoded.
+ * <p>
+ * A document whose root is an array holds a batch of projects, read one at a time
+ * with nextProject and readProject.
+ * <p>
+ * A large file may be split across consecutive entries with the same path, each with a
+ * "chunk" index from 0. Piece 0 gives "chunkCount" and optionally the final "size" and
+ * "sha1". A piece holds its content inline, or names a "chunkFile" next to the input
+ * (e.g. /str/chunk-3) whose bytes are used as they are.
+ */
+class ProjectJsonReader {
+
+    private final ByteBuffer src;
+    private final File chunkDir;
+    private final int len;
+    private int pos;
+    private String projectId;
+    private boolean inBatch;
+
+    /** Reads src from index 0 up to its limit; the buffer's position is left untouched. */
+    ProjectJsonReader(ByteBuffer src) {
+        this(src, null);
+    }
+
+    /** chunkDir is where chunkFile names are resolved; null if chunk files are not allowed. */
+    ProjectJsonReader(ByteBuffer src, File chunkDir) {
+        this.src = src;
+        this.chunkDir = chunkDir;
+        this.len = src.limit();
+    }
+
+    /**
+     * Reads the root object and streams the entries of its Files array to the handler.
+     * Returns false if the document has no Files array.
+     */
+    boolean read(ProjectEntryHandler handler) throws IOException {
+        pos = 0;
+        return readProject(handler);
+    }
+
+    /** True if the root is an array of projects rather than a single project object. */
+    boolean isBatch() throws IOException {
+        int saved = pos;
+        pos = 0;
+        boolean batch = peek() == '[';
+        pos = saved;
+        return batch;
+    }
+
+    /**
+     * Moves to the next project of a batch document; returns false once the array is
+     * exhausted. Each project is then read with readProject.
+     */
+    boolean nextProject() throws IOException {
+        if (!inBatch) {
+            pos = 0;
+            expect('[');
+            inBatch = true;
+            if (peek() != ']') return true;
+            pos++;
+            return false;
+        }
+        return nextMember(']');
+    }
+
+    // Reads the project object at pos, leaving pos just past it
+    boolean readProject(ProjectEntryHandler handler) throws IOException {
+        projectId = null;
+        expect('{');
+        boolean found = false;
+        if (peek() == '}') {
+            pos++;
+            return false;
+        }
+        while (true) {
+            peek();
+            int keyStart = pos + 1;
+            int keyEnd = scanString();
+            expect(':');
+            if (!found && regionEquals(keyStart, keyEnd, "Files") && peek() == '[') {
+                readEntries(handler, "", true);
+                found = true;
+            } else if (regionEquals(keyStart, keyEnd, "Id") && peek() == '"') {
+                projectId = readString();
+            } else {
+                skipValue();
+            }
+            if (!nextMember('}')) return found;
+        }
+    }
+
+    /** The root object's Id, once read has passed it; null if the document has none. */
+    String getProjectId() {
+        return projectId;
+    }
+
+    // Reads a JSON array of file/folder objects below parentPath
+    private void readEntries(ProjectEntryHandler handler, String parentPath, boolean emit) throws IOException {
+        expect('[');
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        do {
+            readEntry(handler, parentPath, emit);
+        } while (nextMember(']'));
+    }
+
+    // Reads one file/folder object. The entry is reported before its children are read.
+    private void readEntry(ProjectEntryHandler handler, String parentPath, boolean emit) throws IOException {
+        expect('{');
+        String path = null;
+        int contentStart = -1, contentEnd = -1;
+        boolean isBinary = false, isDirectory = false, reported = false;
+        int chunk = -1, chunkCount = -1;
+        long size = -1;
+        String sha1 = null, chunkFile = null;
+        if (peek() == '}') {
+            pos++;
+            if (emit) report(handler, parentPath, null, false, false, -1, -1);
+            return;
+        }
+        do {
+            peek();
+            int keyStart = pos + 1;
+            int keyEnd = scanString();
+            expect(':');
+            if (regionEquals(keyStart, keyEnd, "path")) {
+                path = peek() == '"' ? readString() : skipValueToNull();
+            } else if (regionEquals(keyStart, keyEnd, "content")) {
+                if (peek() == '"') {
+                    contentStart = pos + 1;
+                    contentEnd = scanString();
+                } else {
+                    skipValue();
+                }
+            } else if (regionEquals(keyStart, keyEnd, "isBinary")) {
+                isBinary = readFlag();
+            } else if (regionEquals(keyStart, keyEnd, "isDirectory")) {
+                isDirectory = readFlag();
+            } else if (regionEquals(keyStart, keyEnd, "chunk")) {
+                chunk = (int) readLong();
+            } else if (regionEquals(keyStart, keyEnd, "chunkCount")) {
+                chunkCount = (int) readLong();
+            } else if (regionEquals(keyStart, keyEnd, "size")) {
+                size = readLong();
+            } else if (regionEquals(keyStart, keyEnd, "sha1")) {
+                sha1 = peek() == '"' ? readString() : skipValueToNull();
+            } else if (regionEquals(keyStart, keyEnd, "chunkFile")) {
+                chunkFile = peek() == '"' ? readString() : skipValueToNull();
+            } else if (regionEquals(keyStart, keyEnd, "children") && peek() == '[') {
+                String fullPath = null;
+                if (emit && !reported && chunk < 0) {
+                    fullPath = report(handler, parentPath, path, isBinary, isDirectory, contentStart, contentEnd);
+                    reported = true;
+                }
+                // Children of plain files are ignored, as are children of entries without a path
+                readEntries(handler, fullPath, fullPath != null && isDirectory);
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+        if (!emit || reported) return;
+        if (chunk >= 0 && path != null && !path.isEmpty()) {
+            reportChunk(handler, join(parentPath, path),
+                    new ProjectEntryHandler.Chunk(chunk, chunkCount, size, sha1), isBinary, contentStart, contentEnd, chunkFile);
+        } else {
+            report(handler, parentPath, path, isBinary, isDirectory, contentStart, contentEnd);
+        }
+    }
+
+    // Hands a completed entry to the handler and returns its full path, or null if it was skipped
+    private String report(ProjectEntryHandler handler, String parentPath, String path, boolean isBinary, boolean isDirectory,
+                          int contentStart, int contentEnd) {
+        if (path == null || path.isEmpty()) {
+            System.err.println("Skipping file with missing path.");
+            return null;
+        }
+        String fullPath = join(parentPath, path);
+        if (isDirectory) handler.directory(fullPath);
+        else handler.file(fullPath, isBinary ? ProjectEntryHandler.Encoding.JSON_BASE64
+                : ProjectEntryHandler.Encoding.JSON_TEXT, src, contentStart, contentEnd);
+        return fullPath;
+    }
+
+    // Joins a child's path to its parent's; a child path that already starts with the parent's is taken as it is
+    static String join(String parentPath, String path) {
+        if (!parentPath.isEmpty() && path.startsWith(parentPath + "/")) return path;
+        return parentPath + (path.startsWith("/") ? path : "/" + path);
+    }
+
+    // Hands one piece of a chunked file to the handler, reading it from its chunk file if it has one
+    private void reportChunk(ProjectEntryHandler handler, String fullPath, ProjectEntryHandler.Chunk chunk, boolean isBinary,
+                             int contentStart, int contentEnd, String chunkFile) {
+        if (chunkFile == null) {
+            handler.chunk(fullPath, chunk, isBinary ? ProjectEntryHandler.Encoding.JSON_BASE64
+                    : ProjectEntryHandler.Encoding.JSON_TEXT, src, contentStart, contentEnd);
+            return;
+        }
+        // Only plain names are accepted, so a piece cannot be read from outside the input's directory
+        if (chunkDir == null || chunkFile.isEmpty() || chunkFile.contains("/") || chunkFile.contains("\\") || chunkFile.startsWith(".")) {
+            System.err.println("Warning: ignoring chunk file '" + chunkFile + "' of '" + fullPath + "'.");
+            return;
+        }
+        ByteBuffer piece;
+        try {
+            piece = CreateSnapCodeProjectCheerpJ.readAll(new File(chunkDir, chunkFile));
+        } catch (IOException e) {
+            System.err.println("Warning: could not read chunk file '" + chunkFile + "' of '" + fullPath + "': " + e.getMessage());
+            return;
+        }
+        handler.chunk(fullPath, chunk, ProjectEntryHandler.Encoding.RAW, piece, 0, piece.limit());
+    }
+
+    // Reads true/false, accepting the quoted forms the old reader tolerated
+    private boolean readFlag() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            String s = readString();
+            return s.equalsIgnoreCase("true");
+        }
+        int start = pos;
+        skipValue();
+        return regionEquals(start, pos, "true");
+    }
+
+    // Reads a string value, decoding UTF-8 and unescaping it
+    private String readString() throws IOException {
+        int start = pos + 1;
+        int end = scanString();
+        ByteBuffer slice = src.duplicate();
+        slice.limit(end).position(start);
+        String s = StandardCharsets.UTF_8.decode(slice).toString();
+        return s.indexOf('\\') < 0 ? s : JsonUnescape.unescapeJsonString(s);
+    }
+
+    // Reads an integer value
+    private long readLong() throws IOException {
+        peek();
+        int start = pos;
+        skipValue();
+        try {
+            return Long.parseLong(StandardCharsets.US_ASCII.decode(src.duplicate().limit(pos).position(start)).toString());
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("expected an integer");
+        }
+    }
+
+    private String skipValueToNull() throws IOException {
+        skipValue();
+        return null;
+    }
+
+    // Skips past the string starting at pos and returns the index of its closing quote
+    private int scanString() throws IOException {
+        if (pos >= len || src.get(pos) != '"') throw error("expected '\"'");
+        for (int i = pos + 1; i < len; i++) {
+            byte c = src.get(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                pos = i + 1;
+                return i;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    // Skips any JSON value, tracking strings so that escaped quotes and brackets inside them are ignored
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            scanString();
+            return;
+        }
+        if (c != '{' && c != '[') {
+            while (pos < len) {
+                c = src.get(pos);
+                if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) break;
+                pos++;
+            }
+            return;
+        }
+        int depth = 0;
+        while (pos < len) {
+            c = src.get(pos);
+            if (c == '"') {
+                scanString();
+                continue;
+            }
+            if (c == '{' || c == '[') depth++;
+            else if (c == '}' || c == ']') depth--;
+            pos++;
+            if (depth == 0) return;
+        }
+        throw error("unterminated value");
+    }
+
+    // Consumes a ',' (returning true) or the closing character (returning false)
+    private boolean nextMember(char close) throws IOException {
+        int c = peek();
+        pos++;
+        if (c == ',') return true;
+        if (c == close) return false;
+        pos--;
+        throw error("expected ',' or '" + close + "'");
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) throw error("expected '" + c + "'");
+        pos++;
+    }
+
+    // Skips whitespace and returns the next byte without consuming it
+    private int peek() throws IOException {
+        while (pos < len && isWhitespace(src.get(pos))) pos++;
+        if (pos >= len) throw error("unexpected end of input");
+        return src.get(pos);
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private boolean regionEquals(int start, int end, String s) {
+        if (end - start != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (src.get(start + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException("Malformed project.json at offset " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,161 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plans the paths of a project in a trie as its entries stream from a reader to the
+ * writer. Paths are normalized ('\' becomes '/', empty and '.' segments are dropped) and
+ * entries with a '..' segment are rejected. A path that was already planned is dropped
+ * as a duplicate, so it never reaches the file system. The first time a path needs a
+ * directory, that directory and any missing ancestors are handed on, parent first. Each
+ * directory is therefore created exactly once and before anything inside it.
+ * <p>
+ * The trie is built as entries arrive rather than in a separate pass, so parsing still
+ * overlaps with writing and no content span is held longer than before. Of two entries
+ * with the same path the first one wins.
+ * <p>
+ * A plan made for one project skips entries outside its directory, so that a document
+ * cannot write into another project that shares the output root.
+ */
+class ProjectPathPlan implements ProjectEntryHandler {
+
+    private static final class Node {
+        final boolean isFile;
+        final Map<String, Node> children;
+        /** For files whose content arrives in pieces: later pieces are handed on too. */
+        boolean chunked;
+
+        Node(boolean isFile) {
+            this.isFile = isFile;
+            this.children = isFile ? null : new HashMap<>();
+        }
+    }
+
+    private final ProjectEntryHandler target;
+    private final MaterializeMetrics metrics;
+    /** "/<projectId>", or null to accept entries anywhere below the output root. */
+    private final String projectPrefix;
+    private final Node root = new Node(false);
+
+    ProjectPathPlan(ProjectEntryHandler target, MaterializeMetrics metrics) {
+        this(target, metrics, null);
+    }
+
+    /** projectId, if not null, is the only project directory entries may be in. */
+    ProjectPathPlan(ProjectEntryHandler target, MaterializeMetrics metrics, String projectId) {
+        this.target = target;
+        this.metrics = metrics;
+        this.projectPrefix = projectId == null || projectId.isEmpty() ? null : "/" + projectId;
+    }
+
+    /**
+     * Returns path as '/'-separated segments with a leading '/', or null if it is empty or
+     * has a '..' segment that could reach outside the output root.
+     */
+    static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder(path.length() + 1);
+        for (String segment : path.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) continue;
+            if (segment.equals("..")) return null;
+            normalized.append('/').append(segment);
+        }
+        return normalized.length() == 0 ? null : normalized.toString();
+    }
+
+    @Override
+    public void directory(String path) {
+        String normalized = admit(path);
+        if (normalized == null) return;
+        Node parent = parentOf(normalized, path);
+        if (parent == null) return;
+        String name = normalized.substring(normalized.lastIndexOf('/') + 1);
+        Node existing = parent.children.get(name);
+        if (existing == null) {
+            parent.children.put(name, new Node(false));
+            target.directory(normalized);
+        } else if (existing.isFile) {
+            System.err.println("Skipping directory '" + path + "': a file has the same path.");
+        } else {
+            metrics.duplicates++;
+        }
+    }
+
+    @Override
+    public void file(String path, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        String normalized = admit(path);
+        if (normalized != null && plan(normalized, path) != null) target.file(normalized, encoding, src, contentStart, contentEnd);
+    }
+
+    @Override
+    public void chunk(String path, Chunk chunk, Encoding encoding, ByteBuffer src, int contentStart, int contentEnd) {
+        String normalized = admit(path);
+        if (normalized == null) return;
+        if (chunk.index == 0) {
+            Node node = plan(normalized, path);
+            if (node == null) return;
+            node.chunked = true;
+        } else {
+            // Later pieces only follow a first piece that was handed on
+            Node node = find(normalized);
+            if (node == null || !node.chunked) return;
+        }
+        target.chunk(normalized, chunk, encoding, src, contentStart, contentEnd);
+    }
+
+    // Normalizes path, reporting it if it has to be rejected
+    private String admit(String path) {
+        String normalized = normalize(path);
+        if (normalized != null && projectPrefix != null && !normalized.equals(projectPrefix)
+                && !normalized.startsWith(projectPrefix + "/")) normalized = null;
+        if (normalized == null) System.err.println("Skipping entry '" + path + "' outside the project.");
+        return normalized;
+    }
+
+    // Adds a file to the trie and returns its node, or null if the path is a duplicate or taken by a directory
+    private Node plan(String normalized, String path) {
+        Node parent = parentOf(normalized, path);
+        if (parent == null) return null;
+        String name = normalized.substring(normalized.lastIndexOf('/') + 1);
+        Node existing = parent.children.get(name);
+        if (existing != null) {
+            if (existing.isFile) metrics.duplicates++;
+            else System.err.println("Skipping file '" + path + "': a directory has the same path.");
+            return null;
+        }
+        Node node = new Node(true);
+        parent.children.put(name, node);
+        return node;
+    }
+
+    // Returns the directory node that will hold normalized, handing on any directory that is new on
+    // the way; null if an ancestor is a file
+    private Node parentOf(String normalized, String path) {
+        Node node = root;
+        for (int start = 1, end; (end = normalized.indexOf('/', start)) >= 0; start = end + 1) {
+            String name = normalized.substring(start, end);
+            Node child = node.children.get(name);
+            if (child == null) {
+                child = new Node(false);
+                node.children.put(name, child);
+                target.directory(normalized.substring(0, end));
+            } else if (child.isFile) {
+                System.err.println("Skipping entry '" + path + "': '" + normalized.substring(0, end) + "' is a file.");
+                return null;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    // Returns the node planned for normalized, or null if there is none
+    private Node find(String normalized) {
+        Node node = root;
+        for (int start = 1; node != null && !node.isFile; ) {
+            int end = normalized.indexOf('/', start);
+            node = node.children.get(end < 0 ? normalized.substring(start) : normalized.substring(start, end));
+            if (end < 0) return node;
+            start = end + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streams a project.zip into the writer one entry at a time, so no entry is ever collected
+ * in memory. The central directory is read first, which tells the archive's layout before
+ * anything is written: either the entries sit in one top-level project directory
+ * (np1/src/Main.java), which is rebased to the requested project id the way
+ * ProjectContainerReader rebases a container, or they are relative to the project root
+ * (build.snapcode, src/Main.java). An archive with several top-level directories and no
+ * file at its root is rejected. Directories are created on demand as files need them.
+ */
+class ProjectZipReader {
+    private final File file;
+    private String projectId;
+
+    /** projectId, if not null, is the project the archive is written to, whatever directory it was made from. */
+    ProjectZipReader(File file, String projectId) {
+        this.file = file;
+        this.projectId = projectId;
+    }
+
+    /** The project the entries were written to; known once read has started. */
+    String getProjectId() {
+        return projectId;
+    }
+
+    void read(CreateSnapCodeProjectCheerpJ writer) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            List<? extends ZipEntry> entries = Collections.list(zip.entries());
+            String from = archiveRoot(entries);
+            if (projectId == null) {
+                if (from.isEmpty()) throw new IOException("'" + file + "' has no project directory; name the project with --project=ID");
+                projectId = from.substring(1);
+            }
+            String to = "/" + projectId;
+            for (ZipEntry entry : entries) {
+                String path = ProjectPathPlan.normalize(entry.getName());
+                if (path == null) {
+                    System.err.println("Skipping zip entry '" + entry.getName() + "' outside the project.");
+                    continue;
+                }
+                path = to + path.substring(from.length());
+                if (entry.isDirectory()) {
+                    writer.directory(path);
+                    continue;
+                }
+                // The central directory always has the CRC and size, so an unchanged file is skipped unread
+                try (InputStream in = zip.getInputStream(entry)) {
+                    writer.file(path, in, CreateSnapCodeProjectCheerpJ.streamHash(entry.getCrc(), entry.getSize()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns "/<dir>" if every entry is in the one top-level directory dir, or "" if the
+     * entries are relative to the project root, which is the case once a file sits at the root.
+     */
+    private String archiveRoot(List<? extends ZipEntry> entries) throws IOException {
+        TreeSet<String> roots = new TreeSet<>();
+        for (ZipEntry entry : entries) {
+            String path = ProjectPathPlan.normalize(entry.getName());
+            if (path == null) continue;
+            int slash = path.indexOf('/', 1);
+            if (slash < 0 && !entry.isDirectory()) return "";
+            roots.add(slash < 0 ? path : path.substring(0, slash));
+        }
+        if (roots.size() > 1) throw new IOException("'" + file + "' has more than one top-level directory: " + String.join(", ", roots));
+        return roots.isEmpty() ? "" : roots.first();
+    }
+}